@@ -132,8 +132,7 @@ public class CacheDirective extends Directive
             context.getBroker().getLog ("CacheDirective")
                                .info ("Caching /" + key + "/");
             
-            FastWriter fwTmp = FastWriter.getInstance (context.getBroker(), 
-                                                      fw.getEncoding ());
+            FastWriter fwTmp = FastWriter.getCaptureInstance (context);
             
             // write the body to our temporary FastWriter
             // and store its toString() output
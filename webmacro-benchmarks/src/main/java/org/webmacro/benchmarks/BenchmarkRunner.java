@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the whole suite the way we compare releases: every benchmark single-threaded and with 32
+ * threads, plus the EncodingCache at 1, 8 and 64 threads, each run writing JMH's JSON results to its
+ * own file (<code>results-1.json</code>, <code>results-32.json</code>, ...) in the directory given
+ * as the first argument, or the current directory.
+ * <p>
+ * Any other arguments are handed to JMH's own command line instead, e.g.
+ * <code>java -jar benchmarks.jar RenderBenchmark -t 4 -rf json</code>.
+ */
+public final class BenchmarkRunner
+{
+
+  private static final int[] THREADS = { 1, 32 };
+
+  private static final int[] ENCODING_CACHE_THREADS = { 1, 8, 64 };
+
+  private BenchmarkRunner()
+  {
+  }
+
+  public static void main(String[] args)
+      throws Exception
+  {
+    if (args.length > 1 || (args.length == 1 && !new File(args[0]).isDirectory())) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    File dir = new File(args.length == 1 ? args[0] : ".");
+
+    for (int i = 0; i < THREADS.length; i++)
+      run(".*", THREADS[i], new File(dir, "results-" + THREADS[i] + ".json"));
+    for (int i = 0; i < ENCODING_CACHE_THREADS.length; i++)
+      run(EncodingCacheBenchmark.class.getSimpleName(), ENCODING_CACHE_THREADS[i],
+          new File(dir, "results-encodingcache-" + ENCODING_CACHE_THREADS[i] + ".json"));
+  }
+
+  private static void run(String include,
+                          int threads,
+                          File result)
+      throws Exception
+  {
+    Options opts =
+        new OptionsBuilder().include(BenchmarkRunner.class.getPackage().getName() + "\\."
+                                     + include)
+                            .threads(threads)
+                            .forks(1)
+                            .warmupIterations(5)
+                            .measurementIterations(5)
+                            .resultFormat(ResultFormatType.JSON)
+                            .result(result.getPath())
+                            .build();
+    new Runner(opts).run();
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webmacro.util.EncodingCache;
+
+/**
+ * Lookups in a shared EncodingCache. Most of them hit, as they do once a site is warm; the
+ * interesting number is how throughput holds up as threads are added, so BenchmarkRunner runs this
+ * at 1, 8 and 64 threads. <code>encodeSynchronized</code> does the same lookups in a copy of the
+ * cache as it was when every lookup locked its bucket, to compare against.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncodingCacheBenchmark
+{
+
+  @State(Scope.Benchmark)
+  public static class Shared
+  {
+
+    EncodingCache cache;
+    SynchronizedEncodingCache synchronizedCache;
+    String[] strings;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+      cache = new EncodingCache("UTF-8");
+      synchronizedCache = new SynchronizedEncodingCache("UTF-8");
+      strings = new String[256];
+      for (int i = 0; i < strings.length; i++)
+        strings[i] = "string number " + i;
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor
+  {
+
+    int next;
+  }
+
+  @Benchmark
+  public byte[] encode(Shared s,
+                       Cursor c)
+      throws Exception
+  {
+    int i = c.next++ & (s.strings.length - 1);
+    return s.cache.encode(s.strings[i]);
+  }
+
+  @Benchmark
+  public byte[] encodeSynchronized(Shared s,
+                                   Cursor c)
+      throws Exception
+  {
+    int i = c.next++ & (s.strings.length - 1);
+    return s.synchronizedCache.encode(s.strings[i]);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webmacro.Broker;
+import org.webmacro.FastWriter;
+import org.webmacro.WM;
+
+/**
+ * FastWriter output in the two encodings people actually serve pages in. writeStatic() is what
+ * template text goes through; write(String) is what evaluated variables go through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FastWriterBenchmark
+{
+
+  @Param({ "UTF-8", "ISO-8859-1" })
+  public String encoding;
+
+  private FastWriter _out;
+  private String[] _static;
+  private String[] _dynamic;
+
+  @Setup
+  public void setUp()
+      throws Exception
+  {
+    Broker broker = new WM().getBroker();
+    _out = FastWriter.getInstance(broker, encoding);
+    _static = new String[64];
+    _dynamic = new String[64];
+    for (int i = 0; i < _static.length; i++) {
+      _static[i] = Fixtures.staticText(256 + i);
+      // mostly ASCII, as variable values usually are, with the odd accented letter
+      _dynamic[i] = "value " + i + ((i % 8 == 0) ? " caf\u00e9" : "");
+    }
+  }
+
+  @Benchmark
+  public int writeStatic()
+      throws Exception
+  {
+    _out.reset(null);
+    for (int i = 0; i < _static.length; i++)
+      _out.writeStatic(_static[i]);
+    return _out.size();
+  }
+
+  @Benchmark
+  public int writeString()
+      throws Exception
+  {
+    _out.reset(null);
+    for (int i = 0; i < _dynamic.length; i++)
+      _out.write(_dynamic[i]);
+    return _out.size();
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.webmacro.Broker;
+import org.webmacro.Template;
+import org.webmacro.engine.StringTemplate;
+
+/**
+ * Template text and data shared by the benchmarks. Everything here is built once per trial, so the
+ * benchmarks themselves measure only the operation they are named for.
+ */
+public final class Fixtures
+{
+
+  /** Number of beans iterated over by the #foreach benchmark. */
+  static final int BEANS = 10000;
+
+  private Fixtures()
+  {
+  }
+
+  /**
+   * A bean with a handful of properties, as found in a typical order listing.
+   */
+  public static final class Item
+  {
+
+    private final int _id;
+    private final String _name;
+    private final double _price;
+    private final Item _parent;
+
+    public Item(int id,
+                Item parent)
+    {
+      _id = id;
+      _name = "item-" + id;
+      _price = id * 1.25;
+      _parent = parent;
+    }
+
+    public int getId()
+    {
+      return _id;
+    }
+
+    public String getName()
+    {
+      return _name;
+    }
+
+    public double getPrice()
+    {
+      return _price;
+    }
+
+    public boolean isOnSale()
+    {
+      return (_id % 3) == 0;
+    }
+
+    public Item getParent()
+    {
+      return _parent;
+    }
+  }
+
+  static List<Item> items(int count)
+  {
+    List<Item> items = new ArrayList<Item>(count);
+    for (int i = 0; i < count; i++)
+      items.add(new Item(i, null));
+    return items;
+  }
+
+  /**
+   * An item whose parents go depth levels deep.
+   */
+  static Item chain(int depth)
+  {
+    Item item = null;
+    for (int i = 0; i < depth; i++)
+      item = new Item(i, item);
+    return item;
+  }
+
+  /**
+   * About size characters of markup with nothing to evaluate in it.
+   */
+  static String staticText(int size)
+  {
+    StringBuilder sb = new StringBuilder(size + 100);
+    int row = 0;
+    while (sb.length() < size) {
+      sb.append("<tr class=\"row").append(row % 2).append("\"><td>Row ").append(row++)
+        .append("</td><td>Some static text that is the same on every request.</td></tr>\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A page that exercises most of the parser: directives, nested blocks, property references,
+   * method calls, expressions, macros and plenty of text in between.
+   */
+  static String page()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("#macro row($item) {<tr><td>$item.Id</td><td>$item.Name</td></tr>}\n");
+    for (int i = 0; i < 50; i++) {
+      sb.append("<h2>Section ").append(i).append("</h2>\n");
+      sb.append("#set $total").append(i).append(" = 0\n");
+      sb.append("#foreach $item in $items {\n");
+      sb.append("  #if ($item.OnSale && $item.Price > ").append(i).append(") {\n");
+      sb.append("    #row($item)\n");
+      sb.append("    #set $total").append(i).append(" = $total").append(i).append(" + $item.Id\n");
+      sb.append("  } #else {\n");
+      sb.append("    <p>$item.Name.toUpperCase() is $item.Parent.Name</p>\n");
+      sb.append("  }\n");
+      sb.append("}\n");
+      sb.append("<p>Total: $total").append(i).append("</p>\n");
+    }
+    return sb.toString();
+  }
+
+  static Template template(Broker broker,
+                           String text)
+      throws Exception
+  {
+    Template t = new StringTemplate(broker, text);
+    t.parse();
+    return t;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.benchmarks;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webmacro.Broker;
+import org.webmacro.WM;
+import org.webmacro.engine.BlockBuilder;
+import org.webmacro.engine.BuildContext;
+import org.webmacro.engine.Parser;
+
+/**
+ * Turning template text into a Block: WMParser producing the BlockBuilder tree, and
+ * BlockBuilder.build resolving it into the Block that gets rendered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParseBenchmark
+{
+
+  private Broker _broker;
+  private Parser _parser;
+  private String _text;
+  private BlockBuilder _builder;
+
+  @Setup
+  public void setUp()
+      throws Exception
+  {
+    _broker = new WM().getBroker();
+    _parser = (Parser) _broker.get("parser", "wm");
+    _text = Fixtures.page();
+    _builder = _parser.parseBlock("page", new StringReader(_text));
+  }
+
+  @Benchmark
+  public BlockBuilder parse()
+      throws Exception
+  {
+    return _parser.parseBlock("page", new StringReader(_text));
+  }
+
+  @Benchmark
+  public Object build()
+      throws Exception
+  {
+    return _builder.build(new BuildContext(_broker));
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.benchmarks;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webmacro.Broker;
+import org.webmacro.Context;
+import org.webmacro.FastWriter;
+import org.webmacro.Template;
+import org.webmacro.WM;
+import org.webmacro.engine.Block;
+import org.webmacro.engine.BuildContext;
+import org.webmacro.engine.Parser;
+
+/**
+ * Rendering already parsed templates: a large Block of static text, a #foreach over 10k beans, a
+ * deep property chain going through the PropertyOperatorCache, and Expression arithmetic. The
+ * templates are shared between threads, as they are in a servlet; each thread has its own Context
+ * and FastWriter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RenderBenchmark
+{
+
+  @State(Scope.Benchmark)
+  public static class Templates
+  {
+
+    Broker broker;
+    Block staticText;
+    Template foreach;
+    Template propertyChain;
+    Template expression;
+    List<Fixtures.Item> items;
+    Fixtures.Item chain;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+      broker = new WM().getBroker();
+      Parser parser = (Parser) broker.get("parser", "wm");
+      staticText =
+          (Block) parser.parseBlock("static", new StringReader(Fixtures.staticText(64 * 1024)))
+                        .build(new BuildContext(broker));
+      foreach =
+          Fixtures.template(broker, "#foreach $item in $items {<tr><td>$item.Id</td>"
+                                    + "<td>$item.Name</td><td>$item.Price</td></tr>\n}");
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 100; i++)
+        sb.append("$chain.Parent.Parent.Parent.Parent.Parent.Parent.Parent.Name\n");
+      propertyChain = Fixtures.template(broker, sb.toString());
+      sb.setLength(0);
+      for (int i = 0; i < 100; i++)
+        sb.append("#set $x = ($a * 3 + $b) / 2 - $c\n#if ($x < $b && $a <= 100) {$x}\n");
+      expression = Fixtures.template(broker, sb.toString());
+      items = Fixtures.items(Fixtures.BEANS);
+      chain = Fixtures.chain(10);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Output
+  {
+
+    Context context;
+    FastWriter out;
+
+    @Setup
+    public void setUp(Templates t)
+        throws Exception
+    {
+      context = new Context(t.broker);
+      context.put("items", t.items);
+      context.put("chain", t.chain);
+      context.put("a", new Integer(42));
+      context.put("b", new Integer(17));
+      context.put("c", new Integer(123));
+      out = FastWriter.getInstance(t.broker, "UTF-8");
+    }
+  }
+
+  @Benchmark
+  public int staticText(Templates t,
+                        Output o)
+      throws Exception
+  {
+    o.out.reset(null);
+    t.staticText.write(o.out, o.context);
+    return o.out.size();
+  }
+
+  @Benchmark
+  public int foreach(Templates t,
+                     Output o)
+      throws Exception
+  {
+    o.out.reset(null);
+    t.foreach.write(o.out, o.context);
+    return o.out.size();
+  }
+
+  @Benchmark
+  public int propertyChain(Templates t,
+                           Output o)
+      throws Exception
+  {
+    o.out.reset(null);
+    t.propertyChain.write(o.out, o.context);
+    return o.out.size();
+  }
+
+  @Benchmark
+  public int expression(Templates t,
+                        Output o)
+      throws Exception
+  {
+    o.out.reset(null);
+    t.expression.write(o.out, o.context);
+    return o.out.size();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+
+package org.webmacro.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The string half of EncodingCache as it was before its lookups were made lock-free: five entries
+ * per bucket, each bucket locked for every lookup. Kept only so that EncodingCacheBenchmark can run
+ * it next to the current cache.
+ */
+final class SynchronizedEncodingCache
+{
+
+  private static final class Bucket
+  {
+
+    String string1, string2, string3, string4, string5;
+    byte[] bytes1, bytes2, bytes3, bytes4, bytes5;
+  }
+
+  private final String _encoding;
+  private final Bucket[] _cache;
+  private final int _size;
+
+  SynchronizedEncodingCache(String encoding)
+      throws UnsupportedEncodingException
+  {
+    _size = 1001;
+    _cache = new Bucket[_size];
+    for (int i = 0; i < _size; i++)
+      _cache[i] = new Bucket();
+    _encoding = encoding;
+    "some test string".getBytes(encoding);
+  }
+
+  byte[] encode(String s)
+  {
+    if (s == null)
+      return null;
+
+    int hash = s.hashCode() % _size;
+    if (hash < 0)
+      hash = -hash;
+    Bucket b = _cache[hash];
+    synchronized (b) {
+      if (b.string1 == s)
+        return b.bytes1;
+      else if (b.string2 == s)
+        return b.bytes2;
+      else if (b.string3 == s)
+        return b.bytes3;
+      else if (b.string4 == s)
+        return b.bytes4;
+      else if (b.string5 == s)
+        return b.bytes5;
+
+      try {
+        byte[] buf = s.getBytes(_encoding);
+
+        b.string5 = b.string4;
+        b.string4 = b.string3;
+        b.string3 = b.string2;
+        b.string2 = b.string1;
+        b.string1 = s;
+
+        b.bytes5 = b.bytes4;
+        b.bytes4 = b.bytes3;
+        b.bytes3 = b.bytes2;
+        b.bytes2 = b.bytes1;
+        b.bytes1 = buf;
+
+        return buf;
+      } catch (UnsupportedEncodingException e) {
+        return null; // never happens: checked in the constructor
+      }
+    }
+  }
+}
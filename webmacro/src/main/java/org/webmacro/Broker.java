@@ -31,13 +31,18 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.webmacro.broker.ContextAutoLoader;
+import org.webmacro.broker.DefaultContextAutoLoader;
 import org.webmacro.engine.DefaultEvaluationExceptionHandler;
 import org.webmacro.engine.EvaluationExceptionHandler;
 import org.webmacro.engine.IntrospectionUtils;
 import org.webmacro.engine.MacroDefinition;
 import org.webmacro.engine.MethodWrapper;
 import org.webmacro.engine.PropertyOperatorCache;
+import org.webmacro.resource.ReloadWatcher;
+import org.webmacro.resource.TemplateDependencies;
+import org.webmacro.resource.TemplateWarmup;
 import org.webmacro.util.Settings;
+import org.webmacro.util.SlotMap;
 import org.webmacro.util.SubSettings;
 
 /**
@@ -79,6 +84,16 @@ public class Broker
 
   private EvaluationExceptionHandler _eeHandler;
 
+  private final TemplateWarmup _templateWarmup = new TemplateWarmup();
+
+  private final ReloadWatcher _reloadWatcher = new ReloadWatcher();
+
+  public static final String MAX_SLOTS = "SlotMap.MaxSlots";
+
+  private final SlotMap.Registry _slotRegistry = new SlotMap.Registry(512);
+
+  private final TemplateDependencies _templateDependencies = new TemplateDependencies();
+
   /** a local map for one to dump stuff into, specific to this Broker */
   private final Map<Object, Object> __brokerLocal = new ConcurrentHashMap<Object, Object>();
 
@@ -90,6 +105,9 @@ public class Broker
   private final Map<String, ContextAutoLoader> __toolLoader =
       new ConcurrentHashMap<String, ContextAutoLoader>();
 
+  /** replaced whenever an auto context variable is registered */
+  private volatile Object __autoContextStamp = new Object();
+
   /** map of global macros */
   private final Map<String, MacroDefinition> __macros =
       new ConcurrentHashMap<String, MacroDefinition>();
@@ -242,6 +260,11 @@ public class Broker
       }
     }
 
+    // before any provider loads something it might want watched
+    _reloadWatcher.init(this, __config);
+
+    _slotRegistry.setLimit(__config.getIntegerSetting(MAX_SLOTS, 512));
+
     // set up providers
     __config.processListSetting("Providers", new ProviderSettingHandler());
     if (__providers.size() == 0) {
@@ -346,6 +369,8 @@ public class Broker
       throw new InitException("Error loading one or more macro libraries", macroHandler.e);
     }
 
+    // load templates ahead of the first requests for them, if configured to
+    _templateWarmup.init(this, __config);
   }
 
   /**
@@ -586,6 +611,8 @@ public class Broker
    **/
   public void destroy()
   {
+    _templateWarmup.destroy();
+    _reloadWatcher.destroy();
     Iterator<Provider> providers = __providers.values().iterator();
     while (providers.hasNext()) {
       providers.next().destroy();
@@ -608,6 +635,40 @@ public class Broker
     _eeHandler = eeh;
   }
 
+  /**
+   * Get the registry that numbers the slots of this broker's templates and Contexts.
+   */
+  public SlotMap.Registry getSlotRegistry()
+  {
+    return _slotRegistry;
+  }
+
+  /**
+   * Get the watcher that checks cached files for changes in the background, if the
+   * ReloadWatcher.Interval setting enables it.
+   */
+  public ReloadWatcher getReloadWatcher()
+  {
+    return _reloadWatcher;
+  }
+
+  /**
+   * Get the record of which cached templates were built from which other resources.
+   */
+  public TemplateDependencies getTemplateDependencies()
+  {
+    return _templateDependencies;
+  }
+
+  /**
+   * Get the template warm-up started by init(). Its isDone() tells whether the templates named by
+   * the TemplateWarmup.Paths setting have all been loaded.
+   */
+  public TemplateWarmup getTemplateWarmup()
+  {
+    return _templateWarmup;
+  }
+
   /**
    * Return a map of all global macros. These macros will be included into all templates. As the Map
    * implementation is thread-safe, you can even add macros to the map, if you want to.
@@ -755,6 +816,39 @@ public class Broker
                                           ContextAutoLoader loader)
   {
     __toolLoader.put(variableName, loader);
+    __autoContextStamp = new Object();
+  }
+
+  /**
+   * Find out whether the value is the object that every Context shares for the named auto context
+   * variable, so that a recycled Context may keep it.
+   * 
+   * @see org.webmacro.broker.StatelessContextObjectFactory
+   */
+  public boolean isSharedAutoContextVariable(String variableName,
+                                             Object value)
+  {
+    ContextAutoLoader loader = __toolLoader.get(variableName);
+    return value != null && loader instanceof DefaultContextAutoLoader
+           && ((DefaultContextAutoLoader) loader).getShared(variableName) == value;
+  }
+
+  /**
+   * Find out whether an auto context variable of the given name is registered.
+   */
+  public boolean isAutoContextVariable(String variableName)
+  {
+    return __toolLoader.containsKey(variableName);
+  }
+
+  /**
+   * Return an object that is replaced each time an auto context variable is registered. Anyone who
+   * remembers that a name had no auto context variable can keep relying on that for as long as this
+   * returns the same object.
+   */
+  public Object getAutoContextStamp()
+  {
+    return __autoContextStamp;
   }
 
   /**
@@ -13,14 +13,18 @@ package org.webmacro;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.webmacro.engine.EvaluationExceptionHandler;
 import org.webmacro.engine.FunctionCall;
 import org.webmacro.engine.MethodWrapper;
+import org.webmacro.engine.PropertyCallSite;
+import org.webmacro.util.SlotMap;
 
 /**
  * A Context contains state. The idea is to put all of the data you wish to render into the Context
@@ -52,6 +56,14 @@ public class Context
   private EvaluationExceptionHandler _eeHandler;
 
   private Map<Object, Object> _variables = null;
+  private SlotMap _slots = null; // _variables, if it is a SlotMap
+
+  // false if a subclass overrides the by-name lookups, which the slot and call site lookups
+  // would otherwise skip
+  private final boolean _directAccess = !overridesLookups(getClass());
+
+  private static final ConcurrentHashMap<Class<?>, Boolean> __overridesLookups =
+      new ConcurrentHashMap<Class<?>, Boolean>();
 
   private TemplateEvaluationContext _teContext = new TemplateEvaluationContext();
 
@@ -71,13 +83,50 @@ public class Context
    */
   public Context(Broker broker)
   {
-    this(broker, new HashMap<Object, Object>());
+    this(broker, new SlotMap(broker.getSlotRegistry()));
   }
   
   public Context(Broker broker, Map<Object,Object> variables)
   {
     __broker = broker;
-    _variables = variables;
+    setMap(variables);
+  }
+
+  /**
+   * Return true if c, a Context, overrides getProperty, setProperty(Object, Object) or
+   * internalGet: then its lookups by slot or call site must go through those methods instead.
+   */
+  private static boolean overridesLookups(Class<?> c)
+  {
+    Boolean overrides = __overridesLookups.get(c);
+    if (overrides == null) {
+      overrides = Boolean.FALSE;
+      for (Class<?> k = c; k != Context.class && !overrides.booleanValue(); k = k.getSuperclass()) {
+        overrides =
+            Boolean.valueOf(declares(k, "getProperty", Object.class)
+                            || declares(k, "getProperty", Object[].class)
+                            || declares(k, "setProperty", Object.class, Object.class)
+                            || declares(k, "internalGet", Object.class)
+                            || declares(k, "internalGet", Object[].class)
+                            || declares(k, "internalGet", Object.class, PropertyCallSite.class));
+      }
+      __overridesLookups.put(c, overrides);
+    }
+    return overrides.booleanValue();
+  }
+
+  private static boolean declares(Class<?> c,
+                                  String name,
+                                  Class<?>... params)
+  {
+    try {
+      c.getDeclaredMethod(name, params);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    } catch (SecurityException e) {
+      return true;
+    }
   }
 
   /** Holder for template place. */
@@ -88,6 +137,57 @@ public class Context
     public String _templateName;
     public int _lineNo;
     public int _columnNo;
+    // released FastWriter.getCaptureInstance() writers
+    FastWriter[] _writers;
+    int _writerCount;
+
+    // the most templates an #include remembers in one render
+    private static final int MAX_INCLUDED = 256;
+
+    private int _renderDepth;
+    private HashMap<String, Template> _included;
+
+    /**
+     * Called by a Template as it starts writing with this context; each call must be followed by
+     * one to endRender().
+     */
+    public void beginRender()
+    {
+      _renderDepth++;
+    }
+
+    /**
+     * Called by a Template as it finishes writing. When the outermost template is done, the
+     * templates remembered by putIncluded() are forgotten.
+     */
+    public void endRender()
+    {
+      if (--_renderDepth == 0 && _included != null)
+        _included.clear();
+    }
+
+    /**
+     * Return the template an #include resolved the given name to earlier in this render, or null.
+     */
+    public Template getIncluded(String name)
+    {
+      return (_renderDepth == 0 || _included == null) ? null : _included.get(name);
+    }
+
+    /**
+     * Remember the template an #include resolved the given name to, until the render ends.
+     * Outside of a render this does nothing.
+     */
+    public void putIncluded(String name,
+                            Template t)
+    {
+      if (_renderDepth == 0)
+        return;
+      if (_included == null)
+        _included = new HashMap<String, Template>();
+      if (_included.size() < MAX_INCLUDED)
+        _included.put(name, t);
+    }
   }
 
   /**
@@ -114,7 +214,9 @@ public class Context
       return null; // never going to happen
     }
     c._teContext = new TemplateEvaluationContext();
-    if (_variables instanceof HashMap<?, ?>) {
+    if (_slots != null) {
+      c.setMap(_slots.clone());
+    } else if (_variables instanceof HashMap<?, ?>) {
       c._variables = (Map<Object, Object>) ((HashMap<Object, Object>) _variables).clone();
     } else {
       c._variables = new HashMap<Object, Object>(_variables);
@@ -135,6 +237,25 @@ public class Context
     _eeHandler = null;
   }
 
+  /**
+   * Clear the context so that the same object can be used for another request. Unlike clear() this
+   * keeps the objects of stateless context tools, which every Context shares anyway, and drops any
+   * functions put into this context. The map keeps the room it grew for the last request.
+   * <p>
+   * Subclasses which override clear() should override this as well, and call super.recycle().
+   */
+  public void recycle()
+  {
+    for (Iterator<Map.Entry<Object, Object>> i = _variables.entrySet().iterator(); i.hasNext();) {
+      Map.Entry<Object, Object> e = i.next();
+      if (!(e.getKey() instanceof String)
+          || !__broker.isSharedAutoContextVariable((String) e.getKey(), e.getValue()))
+        i.remove();
+    }
+    _eeHandler = null;
+    _funcs = null;
+  }
+
   /**
    * Get the instance of the Broker for this request.
    */
@@ -203,17 +324,45 @@ public class Context
   protected Object internalGet(Object name)
       throws PropertyException
   {
-    Object ret = _variables.get(name);
-    if (ret != null || _variables.containsKey(name))
-      return ret;
+    return internalGet(name, null);
+  }
+
+  /**
+   * Same as internalGet(name), but uses the call site, if there is one, to remember that the name
+   * has no auto context variable. Subclasses which override internalGet(Object) should override
+   * this instead.
+   */
+  protected Object internalGet(Object name,
+                               PropertyCallSite site)
+      throws PropertyException
+  {
+    Object ret;
+    if (_slots != null) {
+      ret = _slots.lookup(name);
+      if (ret != SlotMap.ABSENT)
+        return ret;
+    } else {
+      ret = _variables.get(name);
+      if (ret != null || _variables.containsKey(name))
+        return ret;
+    }
 
     if (name instanceof String) {
+      Object stamp = null;
+      if (site != null) {
+        stamp = __broker.getAutoContextStamp();
+        if (site.hasNoAutoVariable(stamp))
+          return UNDEF;
+      }
       Object var = __broker.getAutoContextVariable((String) name, this);
       if (var != null) {
         put(name, var);
         return var;
-      } else
+      } else {
+        if (site != null && !__broker.isAutoContextVariable((String) name))
+          site.setNoAutoVariable(stamp);
         return UNDEF;
+      }
     } else if (name instanceof FunctionCall) {
       FunctionCall fc = (FunctionCall) name;
       String fname = fc.getName();
@@ -329,10 +478,17 @@ public class Context
    */
   protected Object internalGet(Object[] names)
       throws PropertyException
+  {
+    return internalGet(names, null);
+  }
+
+  private Object internalGet(Object[] names,
+                             PropertyCallSite site)
+      throws PropertyException
   {
     Object instance;
     try {
-      instance = internalGet(names[0]);
+      instance = _directAccess ? internalGet(names[0], site) : internalGet(names[0]);
     } catch (ArrayIndexOutOfBoundsException e) {
       throw new PropertyException("Attempt to access property with a zero length name array");
     }
@@ -341,7 +497,7 @@ public class Context
     } else if (instance == null) {
       throw new PropertyException.NullValueException(names[0].toString());
     } else {
-      return __broker.__propertyOperators.getProperty(this, instance, names, 1);
+      return __broker.__propertyOperators.getProperty(this, instance, names, 1, site);
     }
   }
 
@@ -389,6 +545,55 @@ public class Context
     return true;
   }
 
+  /**
+   * Same as getProperty(name), but lets the lookup reuse and update the call site kept by the
+   * template node being evaluated. In a subclass that overrides getProperty(Object) or internalGet
+   * this simply calls getProperty(name).
+   */
+  public Object getProperty(Object name,
+                            PropertyCallSite site)
+      throws PropertyException
+  {
+    return _directAccess ? internalGet(name, site) : getProperty(name);
+  }
+
+  /**
+   * Same as getProperty(name), for a name that templates know by the slot number the given
+   * registry gave it. When the context's Map is a SlotMap numbered by that registry, a value in
+   * that slot is returned without any lookup by name. In a subclass that overrides
+   * getProperty(Object) or internalGet this simply calls getProperty(name).
+   */
+  public Object getProperty(Object name,
+                            SlotMap.Registry registry,
+                            int slot)
+      throws PropertyException
+  {
+    if (_directAccess && _slots != null && _slots.getRegistry() == registry) {
+      Object ret = _slots.getSlot(slot);
+      if (ret != SlotMap.ABSENT)
+        return ret;
+    }
+    return getProperty(name);
+  }
+
+  /**
+   * Same as setProperty(name, value), for a name that templates know by the slot number the given
+   * registry gave it. In a subclass that overrides setProperty(Object, Object) or any of the
+   * lookups this simply calls setProperty(name, value).
+   */
+  public boolean setProperty(Object name,
+                             SlotMap.Registry registry,
+                             int slot,
+                             Object value)
+      throws PropertyException
+  {
+    if (_directAccess && _slots != null && _slots.getRegistry() == registry) {
+      _slots.putSlot(slot, value);
+      return true;
+    }
+    return setProperty(name, value);
+  }
+
   /**
    * Same as get(Object names[]) but can be overridden by subclasses to behave differently.
    */
@@ -398,6 +603,18 @@ public class Context
     return internalGet(names);
   }
 
+  /**
+   * Same as getProperty(names), but lets the introspection reuse and update the inline cache kept
+   * by the template node being evaluated. In a subclass that overrides getProperty or internalGet
+   * this simply calls getProperty(names).
+   */
+  public Object getProperty(Object[] names,
+                            PropertyCallSite site)
+      throws PropertyException
+  {
+    return _directAccess ? internalGet(names, site) : getProperty(names);
+  }
+
   /**
    * Same as set(Object names[], Object value) but can be overridden by subclasses to behave
    * differently.
@@ -418,6 +635,7 @@ public class Context
   public final void setMap(Map<Object, Object> m)
   {
     _variables = m;
+    _slots = (m instanceof SlotMap) ? (SlotMap) m : null;
   }
 
   /**
@@ -16,6 +16,10 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 
 import org.webmacro.util.ByteBufferOutputStream;
 import org.webmacro.util.Encoder;
@@ -30,6 +34,12 @@ import org.webmacro.util.EncoderProvider;
  * <li>you can use a unicode conversion cache by calling writeStatic()
  * <li>you can get the contents written to the FastWriter back as an array of bytes INSTEAD of
  * writing to the output stream
+ * <li>with a gather threshold set, large static blocks are not copied at all: the FastWriter keeps
+ * a list of the encoded blocks, with the dynamic output between them in small buffers, and writes
+ * the list out piece by piece, or in one gathering write to a channel
+ * <li>a FastWriter from getCaptureInstance(), for evaluating a template or block into a String,
+ * collects what is written as characters, never encoding it; these are reused within a Context
+ * once they have been release()d
  * </ul>
  * <p>
  * <b>Note that the FastWriter requires an explicit flush</b>
@@ -54,11 +64,37 @@ public class FastWriter
   private final ByteBufferOutputStream __bstream;
   private final Encoder __encoder;
 
+  /**
+   * Largest number of released capture writers a Context keeps for reuse.
+   */
+  private static final int MAX_POOLED = 8;
+
+  /**
+   * Capture writers whose buffer has grown beyond this many characters are not reused, so that one
+   * very large #setblock does not stay in memory for the rest of the request.
+   */
+  private static final int MAX_POOLED_CHARS = 64 * 1024;
+
+  private final boolean __capture;
+  private final Charset __charset; // to decode raw bytes in capture mode
+  private char[] _chars = null; // capture mode contents
+  private int _charCount = 0;
+  private Context.TemplateEvaluationContext _pool = null; // where release() returns us
+  private boolean _pooled = false;
+
   private OutputStream _out;
 
   private char[] _cbuf = null;
   private boolean _buffered;
 
+  private int _flushThreshold = 0;
+  private IOException _flushError = null;
+
+  private int _gatherThreshold;
+  private ByteBuffer[] _segments = null;
+  private int _segmentCount = 0;
+  private int _gathered = 0; // bytes held in _segments
+
   /**
    * Create a FastWriter to the target outputstream. You must specify a character encoding. You can
    * also call writeTo(), toString(), and toByteArray() to access any un-flush()ed contents.
@@ -66,12 +102,33 @@ public class FastWriter
   public FastWriter(Broker broker,
                     OutputStream out,
                     String encoding) throws UnsupportedEncodingException
+  {
+    this(broker, out, encoding, false);
+  }
+
+  private FastWriter(Broker broker,
+                     OutputStream out,
+                     String encoding,
+                     boolean capture) throws UnsupportedEncodingException
   {
     __defaultBufferSize =
         broker.getSettings().getIntegerSetting("FastWriter.DefaultBufferSize", 4096);
     __encoding = hackEncoding(encoding);
-    __bstream = new ByteBufferOutputStream(__defaultBufferSize);
-    __bwriter = new OutputStreamWriter(__bstream, __encoding);
+    __capture = capture;
+    if (capture) {
+      __bstream = null;
+      __bwriter = null;
+      try {
+        __charset = Charset.forName(__encoding);
+      } catch (IllegalArgumentException e) {
+        throw new UnsupportedEncodingException(__encoding);
+      }
+    } else {
+      __bstream = new ByteBufferOutputStream(__defaultBufferSize);
+      __bwriter = new OutputStreamWriter(__bstream, __encoding);
+      __charset = null;
+      _gatherThreshold = broker.getSettings().getIntegerSetting("FastWriter.GatherThreshold", 0);
+    }
 
     // fetch our encoder from the broker
     try {
@@ -126,6 +183,52 @@ public class FastWriter
     return __encoder;
   }
 
+  /**
+   * True if this FastWriter came from getCaptureInstance() and collects characters rather than
+   * bytes. Such a writer prefers to be given text: raw bytes written to it have to be decoded.
+   */
+  public boolean isCapturing()
+  {
+    return __capture;
+  }
+
+  private void appendChars(char[] cbuf,
+                           int offset,
+                           int len)
+  {
+    ensureChars(len);
+    System.arraycopy(cbuf, offset, _chars, _charCount, len);
+    _charCount += len;
+  }
+
+  private void appendChars(String s,
+                           int offset,
+                           int len)
+  {
+    ensureChars(len);
+    s.getChars(offset, offset + len, _chars, _charCount);
+    _charCount += len;
+  }
+
+  private void ensureChars(int len)
+  {
+    if (_chars == null) {
+      _chars = new char[Math.max(len, 256)];
+    } else if (_chars.length < _charCount + len) {
+      char[] grown = new char[Math.max(_charCount + len, _chars.length * 2)];
+      System.arraycopy(_chars, 0, grown, 0, _charCount);
+      _chars = grown;
+    }
+  }
+
+  private void appendBytes(byte[] b,
+                           int offset,
+                           int len)
+  {
+    String s = new String(b, offset, len, __charset);
+    appendChars(s, 0, s.length());
+  }
+
   /**
    * Get the output stream this FastWriter sends output to. It may be null, in which case output is
    * not sent anywhere.
@@ -135,6 +238,140 @@ public class FastWriter
     return _out;
   }
 
+  /**
+   * Get the number of buffered bytes at which this FastWriter sends its contents to the output
+   * stream without waiting for an explicit flush(). Zero means only flush() writes to the stream.
+   */
+  public int getFlushThreshold()
+  {
+    return _flushThreshold;
+  }
+
+  /**
+   * Have this FastWriter send its contents to the output stream whenever at least the given number
+   * of bytes have been buffered, so that a large page does not have to be held in memory in full
+   * before the client sees any of it. Zero (the default) restores the usual behaviour where data is
+   * only written on flush(). Has no effect if there is no output stream.
+   * <p>
+   * An IOException raised while writing out a full buffer is held back and rethrown by the next
+   * call to flush().
+   */
+  public void setFlushThreshold(int bytes)
+  {
+    _flushThreshold = bytes;
+  }
+
+  /**
+   * Get the size in bytes from which writeStatic() keeps a reference to the encoded text instead of
+   * copying it into the buffer. Zero means everything is copied.
+   */
+  public int getGatherThreshold()
+  {
+    return _gatherThreshold;
+  }
+
+  /**
+   * Have writeStatic() keep a reference to encoded static text of at least the given number of
+   * bytes, rather than copying it into the buffer, and hold the dynamic output written in between
+   * in buffers of no more than FastWriter.DefaultBufferSize bytes. A large page is then never
+   * copied as it grows, nor copied again when it is written out with flush() or writeTo(); only
+   * toByteArray() and toString() have to put it back together. Zero, the default unless
+   * FastWriter.GatherThreshold is set, turns this off.
+   */
+  public void setGatherThreshold(int bytes)
+  {
+    _gatherThreshold = bytes;
+  }
+
+  /**
+   * Move the dynamic output written so far onto the segment list, leaving the buffer empty.
+   */
+  private void seal()
+  {
+    if (__bstream.size() > 0) {
+      addSegment(ByteBuffer.wrap(__bstream.getBytes()));
+      __bstream.reset();
+    }
+  }
+
+  private void addSegment(ByteBuffer b)
+  {
+    if (_segments == null) {
+      _segments = new ByteBuffer[16];
+    } else if (_segmentCount == _segments.length) {
+      ByteBuffer[] grown = new ByteBuffer[_segmentCount * 2];
+      System.arraycopy(_segments, 0, grown, 0, _segmentCount);
+      _segments = grown;
+    }
+    _segments[_segmentCount++] = b;
+    _gathered += b.remaining();
+  }
+
+  private void clearSegments()
+  {
+    for (int i = 0; i < _segmentCount; i++) {
+      _segments[i] = null;
+    }
+    _segmentCount = 0;
+    _gathered = 0;
+  }
+
+  /**
+   * Copy any gathered segments back into the buffer, for the methods that need it contiguous.
+   */
+  private void collapse()
+  {
+    if (_segmentCount > 0) {
+      byte[] tail = __bstream.getBytes();
+      __bstream.reset();
+      __bstream.ensureCapacity(_gathered + tail.length);
+      for (int i = 0; i < _segmentCount; i++) {
+        ByteBuffer b = _segments[i];
+        __bstream.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+      }
+      __bstream.write(tail, 0, tail.length);
+      clearSegments();
+    }
+  }
+
+  /**
+   * Send the buffered bytes to the output stream if a flush threshold is set and has been reached.
+   * In gather mode, also keep the dynamic buffer from growing past its default size.
+   */
+  private void checkFlushThreshold()
+  {
+    if (_flushThreshold > 0 && _out != null
+        && _gathered + __bstream.size() >= _flushThreshold) {
+      if (_flushError == null) {
+        try {
+          writeBuffered(_out);
+          _out.flush();
+        } catch (IOException e) {
+          // most likely the client went away; keep rendering into
+          // the buffer and report it when we're flushed
+          _flushError = e;
+        }
+      }
+      clearSegments();
+      __bstream.reset();
+    } else if (_gatherThreshold > 0 && __bstream.size() >= __defaultBufferSize) {
+      seal();
+    }
+  }
+
+  /**
+   * Write the segments and then the buffer to the stream, without copying them.
+   */
+  private void writeBuffered(OutputStream out)
+      throws IOException
+  {
+    for (int i = 0; i < _segmentCount; i++) {
+      ByteBuffer b = _segments[i];
+      out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+    }
+    __bstream.writeTo(out);
+  }
+
   /**
    * Write characters to the output stream performing slow unicode conversion unless AsciiHack is
    * on.
@@ -143,8 +380,13 @@ public class FastWriter
   public void write(char[] cbuf)
       throws java.io.IOException
   {
+    if (__capture) {
+      appendChars(cbuf, 0, cbuf.length);
+      return;
+    }
     __bwriter.write(cbuf, 0, cbuf.length);
     _buffered = true;
+    checkFlushThreshold();
   }
 
   /**
@@ -156,8 +398,13 @@ public class FastWriter
                     int len)
       throws java.io.IOException
   {
+    if (__capture) {
+      appendChars(cbuf, offset, len);
+      return;
+    }
     __bwriter.write(cbuf, offset, len);
     _buffered = true;
+    checkFlushThreshold();
   }
 
   /**
@@ -167,6 +414,11 @@ public class FastWriter
   public void write(int c)
       throws java.io.IOException
   {
+    if (__capture) {
+      ensureChars(1);
+      _chars[_charCount++] = (char) c;
+      return;
+    }
     __bwriter.write(c);
     _buffered = true;
   }
@@ -179,11 +431,14 @@ public class FastWriter
       throws java.io.IOException
   {
     final int len = s.length();
-    if (len > 0) {
+    if (__capture) {
+      appendChars(s, 0, len);
+    } else if (len > 0) {
       char[] cbuf = getCharBuf(len);
       s.getChars(0, len, cbuf, 0);
       __bwriter.write(cbuf, 0, len);
       _buffered = true;
+      checkFlushThreshold();
     }
   }
 
@@ -209,11 +464,14 @@ public class FastWriter
                     final int len)
       throws java.io.IOException
   {
-    if (len > 0) {
+    if (__capture) {
+      appendChars(s, off, len);
+    } else if (len > 0) {
       char[] cbuf = getCharBuf(len);
       s.getChars(off, off + len, cbuf, 0);
       __bwriter.write(cbuf, 0, len);
       _buffered = true;
+      checkFlushThreshold();
     }
   }
 
@@ -223,28 +481,56 @@ public class FastWriter
    */
   public void writeStatic(final String s)
   {
-    if (_buffered) {
-      bflush();
+    if (__capture) {
+      appendChars(s, 0, s.length());
+      return;
     }
     try {
-      byte[] b = __encoder.encode(s);
-      __bstream.write(b, 0, b.length);
+      writeStatic(__encoder.encode(s));
     } catch (UnsupportedEncodingException uee) {
       // this should never happen
       uee.printStackTrace();
     }
   }
 
+  /**
+   * Write bytes, encoded with the encoding returned by getEncoding(), that nobody will ever modify,
+   * such as those handed out by the Encoder. In gather mode the FastWriter may keep a reference to
+   * them instead of copying them.
+   */
+  public void writeStatic(final byte[] encoded)
+  {
+    if (__capture) {
+      appendBytes(encoded, 0, encoded.length);
+      return;
+    }
+    if (_buffered) {
+      bflush();
+    }
+    if (_gatherThreshold > 0 && encoded.length >= _gatherThreshold) {
+      seal();
+      addSegment(ByteBuffer.wrap(encoded));
+    } else {
+      __bstream.write(encoded, 0, encoded.length);
+    }
+    checkFlushThreshold();
+  }
+
   /**
    * Write raw bytes to the underlying stream. These bytes must be properly encoded with the
    * encoding returned by getEncoding().
    */
   public void write(byte[] rawBytes)
   {
+    if (__capture) {
+      appendBytes(rawBytes, 0, rawBytes.length);
+      return;
+    }
     if (_buffered) {
       bflush();
     }
     __bstream.write(rawBytes);
+    checkFlushThreshold();
   }
 
   /**
@@ -255,10 +541,15 @@ public class FastWriter
                     int offset,
                     int len)
   {
+    if (__capture) {
+      appendBytes(rawBytes, offset, len);
+      return;
+    }
     if (_buffered) {
       bflush();
     }
     __bstream.write(rawBytes, offset, len);
+    checkFlushThreshold();
   }
 
   private void bflush()
@@ -276,11 +567,25 @@ public class FastWriter
     return b > 0 & b <= 32;
   }
 
+  private boolean isWhitespace(char c)
+  {
+    return c > 0 & c <= 32;
+  }
+
   public boolean isEmptyOrWhitespaceBuffer()
   {
+    if (__capture) {
+      for (int i = 0; i < _charCount; i++) {
+        if (!isWhitespace(_chars[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
     if (_buffered) {
       bflush();
     }
+    collapse();
     final int s = __bstream.size();
     final byte[] bytes = __bstream.getBuffer();
     for (int i = 0; i < s; i++) {
@@ -293,9 +598,29 @@ public class FastWriter
 
   public int writeTrimmedBufferTo(FastWriter out)
   {
+    if (__capture) {
+      int end = _charCount;
+      int start = 0;
+      while ((start < end) && (isWhitespace(_chars[start]))) {
+        start++;
+      }
+      while ((start < end) && (isWhitespace(_chars[end - 1]))) {
+        end--;
+      }
+      int len = end - start;
+      if (len > 0) {
+        try {
+          out.write(_chars, start, len);
+        } catch (IOException e) {
+          e.printStackTrace(); // FastWriters only buffer
+        }
+      }
+      return len;
+    }
     if (_buffered) {
       bflush();
     }
+    collapse();
     final byte[] bytes = __bstream.getBuffer();
     int end = __bstream.size();
     int start = 0;
@@ -322,14 +647,31 @@ public class FastWriter
   public void flush()
       throws IOException
   {
+    if (__capture) {
+      if (_out != null) {
+        _out.write(toByteArray());
+        _out.flush();
+      }
+      _charCount = 0;
+      return;
+    }
     if (_buffered) {
       bflush();
     }
 
+    if (_flushError != null) {
+      IOException e = _flushError;
+      _flushError = null;
+      clearSegments();
+      __bstream.reset();
+      throw e;
+    }
+
     if (_out != null) {
-      writeTo(_out);
+      writeBuffered(_out);
       _out.flush();
     }
+    clearSegments();
     __bstream.reset();
   }
 
@@ -339,11 +681,14 @@ public class FastWriter
   public int size()
       throws IOException
   {
+    if (__capture) {
+      return toByteArray().length;
+    }
     if (_buffered) {
       bflush();
     }
 
-    return __bstream.size();
+    return _gathered + __bstream.size();
   }
 
   /**
@@ -351,10 +696,24 @@ public class FastWriter
    */
   public byte[] toByteArray()
   {
+    if (__capture) {
+      return toString().getBytes(__charset);
+    }
     if (_buffered) {
       bflush();
     }
-    return __bstream.getBytes();
+    if (_segmentCount == 0) {
+      return __bstream.getBytes();
+    }
+    byte[] bytes = new byte[_gathered + __bstream.size()];
+    int pos = 0;
+    for (int i = 0; i < _segmentCount; i++) {
+      ByteBuffer b = _segments[i];
+      System.arraycopy(b.array(), b.arrayOffset() + b.position(), bytes, pos, b.remaining());
+      pos += b.remaining();
+    }
+    System.arraycopy(__bstream.getBuffer(), 0, bytes, pos, __bstream.size());
+    return bytes;
   }
 
   /**
@@ -363,10 +722,16 @@ public class FastWriter
   @Override
   public String toString()
   {
+    if (__capture) {
+      return (_charCount == 0) ? "" : new String(_chars, 0, _charCount);
+    }
     if (_buffered) {
       bflush();
     }
     try {
+      if (_segmentCount > 0) {
+        return new String(toByteArray(), __encoding);
+      }
       return __bstream.toString(__encoding);
     } catch (UnsupportedEncodingException e) {
       e.printStackTrace(); // never happen: we already used it
@@ -380,10 +745,56 @@ public class FastWriter
   public void writeTo(OutputStream out)
       throws IOException
   {
+    if (__capture) {
+      out.write(toByteArray());
+      return;
+    }
     if (_buffered) {
       bflush();
     }
-    __bstream.writeTo(out);
+    writeBuffered(out);
+  }
+
+  /**
+   * Copy the contents written so far to the supplied channel. A GatheringByteChannel is handed all
+   * the gathered segments in one write.
+   */
+  public void writeTo(WritableByteChannel ch)
+      throws IOException
+  {
+    if (__capture) {
+      ByteBuffer b = ByteBuffer.wrap(toByteArray());
+      while (b.hasRemaining()) {
+        ch.write(b);
+      }
+      return;
+    }
+    if (_buffered) {
+      bflush();
+    }
+    seal();
+    // duplicates, so that writing does not use up our own buffers
+    ByteBuffer[] bufs = new ByteBuffer[_segmentCount];
+    for (int i = 0; i < _segmentCount; i++) {
+      bufs[i] = _segments[i].duplicate();
+    }
+    if (ch instanceof GatheringByteChannel) {
+      GatheringByteChannel gch = (GatheringByteChannel) ch;
+      long left = _gathered;
+      int first = 0;
+      while (left > 0) {
+        left -= gch.write(bufs, first, bufs.length - first);
+        while (first < bufs.length && !bufs[first].hasRemaining()) {
+          first++;
+        }
+      }
+    } else {
+      for (int i = 0; i < bufs.length; i++) {
+        while (bufs[i].hasRemaining()) {
+          ch.write(bufs[i]);
+        }
+      }
+    }
   }
 
   /**
@@ -391,10 +802,17 @@ public class FastWriter
    */
   public void reset(OutputStream out)
   {
+    if (__capture) {
+      _charCount = 0;
+      _out = out;
+      return;
+    }
     if (_buffered) {
       bflush();
     }
+    clearSegments();
     __bstream.reset();
+    _flushError = null;
     _out = out;
   }
 
@@ -444,6 +862,59 @@ public class FastWriter
     }
   }
 
+  /**
+   * Return a FastWriter that collects what is written to it as characters, for evaluating a block
+   * or template into a String with toString(). It does no encoding at all unless asked for bytes.
+   * <p>
+   * Writers are reused within the given Context: call release() (or close()) once you have taken
+   * the result, and do not touch the writer afterwards.
+   */
+  public static FastWriter getCaptureInstance(Context context)
+  {
+    Context.TemplateEvaluationContext pool = context.getTemplateEvaluationContext();
+    FastWriter fw;
+    if (pool._writerCount > 0) {
+      fw = pool._writers[--pool._writerCount];
+      pool._writers[pool._writerCount] = null;
+      fw._pooled = false;
+    } else {
+      try {
+        fw = new FastWriter(context.getBroker(), null, SAFE_UNICODE_ENCODING, true);
+      } catch (UnsupportedEncodingException e) {
+        e.printStackTrace(); // never gonna happen
+        return null;
+      }
+      fw._pool = pool;
+    }
+    return fw;
+  }
+
+  /**
+   * Hand a writer obtained from getCaptureInstance() back for reuse, discarding its contents. Does
+   * nothing for any other FastWriter, or if the writer has already been released.
+   */
+  public void release()
+  {
+    if (_pool == null || _pooled) {
+      return;
+    }
+    _charCount = 0;
+    _out = null;
+    if (_chars != null && _chars.length > MAX_POOLED_CHARS) {
+      _chars = null;
+    }
+    if (_pool._writers == null) {
+      _pool._writers = new FastWriter[MAX_POOLED];
+    }
+    if (_pool._writerCount < MAX_POOLED) {
+      _pooled = true;
+      _pool._writers[_pool._writerCount++] = this;
+    }
+  }
+
+  /**
+   * Flush and close the output stream, if any. A capture writer is then released for reuse.
+   */
   @Override
   public void close()
       throws IOException
@@ -453,5 +924,6 @@ public class FastWriter
       _out.close();
       _out = null;
     }
+    release();
   }
 }
@@ -55,15 +55,25 @@ public class PropertyException
     _message = message;
   }
 
+  /**
+   * The message, less the context location, for a subclass that builds it on demand rather than
+   * passing it to the constructor. Null means the one given to the constructor is used.
+   */
+  protected String getReason()
+  {
+    return null;
+  }
+
   @Override
   public String getMessage()
   {
-    if (_message == null) {
+    String msg = (_message == null) ? getReason() : _message;
+    if (msg == null) {
       return super.getMessage();
     } else {
-      String msg = _message;
-      if (getContextLocation() != null && msg != null) {
-        msg += " at " + getContextLocation();
+      String loc = getContextLocation();
+      if (loc != null) {
+        msg += " at " + loc;
       }
       return msg;
     }
@@ -88,10 +98,25 @@ public class PropertyException
 
     public NoSuchVariableException(String variableName)
     {
-      super("No such variable: $" + variableName);
-
+      super(null);
       this.variableName = variableName;
     }
+
+    @Override
+    protected String getReason()
+    {
+      return "No such variable: $" + variableName;
+    }
+
+    /**
+     * Not filled in: this is raised for every such variable a template touches, and the stack would
+     * only show the engine's own frames.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+      return this;
+    }
   }
 
   /**
@@ -110,10 +135,24 @@ public class PropertyException
 
     public NullToStringException(String variableName)
     {
-      super(".toString() returns null: $" + variableName);
-
+      super(null);
       this.variableName = variableName;
     }
+
+    @Override
+    protected String getReason()
+    {
+      return ".toString() returns null: $" + variableName;
+    }
+
+    /**
+     * Not filled in, as for NoSuchVariableException.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+      return this;
+    }
   }
 
   /**
@@ -132,9 +171,24 @@ public class PropertyException
 
     public NullValueException(String variableName)
     {
-      super("Value is null: $" + variableName);
+      super(null);
       this.variableName = variableName;
     }
+
+    @Override
+    protected String getReason()
+    {
+      return "Value is null: $" + variableName;
+    }
+
+    /**
+     * Not filled in, as for NoSuchVariableException.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+      return this;
+    }
   }
 
   /**
@@ -328,12 +382,22 @@ public class PropertyException
 		 */
     private static final long serialVersionUID = 1L;
     private String _msg = "Attempted to dereference an undefined variable.";
+    private Object _variableName;
 
     public UndefinedVariableException()
     {
       super(null);
     }
 
+    /**
+     * Not filled in, as for NoSuchVariableException.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+      return this;
+    }
+
     /**
      * Overloaded to return the <code>reason</code> specified during construction <b>plus</b> the
      * context location, if any.
@@ -341,7 +405,7 @@ public class PropertyException
     @Override
     public String getMessage()
     {
-      String msg = _msg;
+      String msg = (_variableName == null) ? _msg : _msg + _variableName;
       String loc = getContextLocation();
       if (loc != null) {
         msg += " at " + loc;
@@ -353,6 +417,18 @@ public class PropertyException
     public void setMessage(String msg)
     {
       _msg = msg;
+      _variableName = null;
+    }
+
+    /**
+     * Set the message to <code>msg</code> followed by the variable name, without joining the two
+     * until the message is asked for.
+     */
+    public void setMessage(String msg,
+                           Object variableName)
+    {
+      _msg = msg;
+      _variableName = variableName;
     }
   }
 
@@ -20,6 +20,10 @@ public class WebMacroException
 {
   private static final long serialVersionUID = 1L;
   private String _contextLocation;
+  // where setContextLocation(Context) found the template; turned into _contextLocation on demand
+  private String _templateName;
+  private int _lineNo = -1;
+  private int _columnNo;
 
   public WebMacroException()
   {
@@ -46,8 +50,9 @@ public class WebMacroException
   public String getMessage()
   {
     String msg = super.getMessage();
-    if (_contextLocation != null && msg != null) {
-      msg += " at " + _contextLocation;
+    String loc = getContextLocation();
+    if (loc != null && msg != null) {
+      msg += " at " + loc;
     }
 
     return msg;
@@ -60,6 +65,7 @@ public class WebMacroException
   public void setContextLocation(String location)
   {
     _contextLocation = location;
+    _lineNo = -1;
     Throwable cause = getCause();
     if (cause instanceof PropertyException) {
       PropertyException pe = (PropertyException) cause;
@@ -77,6 +83,34 @@ public class WebMacroException
 
   }
 
+  /**
+   * Record the place the given context is evaluating as the location of this exception, like
+   * <code>setContextLocation(context.getCurrentLocation())</code>, except that the location string
+   * is only built if somebody asks for it.
+   */
+  public void setContextLocation(Context context)
+  {
+    Context.TemplateEvaluationContext tec = context.getTemplateEvaluationContext();
+    _contextLocation = null;
+    _templateName = tec._templateName;
+    _lineNo = tec._lineNo;
+    _columnNo = tec._columnNo;
+    Throwable cause = getCause();
+    if (cause instanceof PropertyException) {
+      PropertyException pe = (PropertyException) cause;
+      if (pe.getContextLocation() == null) {
+        pe.setContextLocation(context);
+      }
+    }
+    cause = getRootCause();
+    if (cause instanceof PropertyException) {
+      PropertyException pe = (PropertyException) cause;
+      if (pe.getContextLocation() == null) {
+        pe.setContextLocation(context);
+      }
+    }
+  }
+
   /**
    * @return location (line/column) from the template that caused this PropertyException to be
    *         thrown. Can be null if this exception instance wasn't previously handled by a core
@@ -84,6 +118,10 @@ public class WebMacroException
    */
   public String getContextLocation()
   {
+    if (_contextLocation == null && _lineNo >= 0) {
+      _contextLocation =
+          (_templateName == null ? "(unknown)" : _templateName) + ":" + _lineNo + "." + _columnNo;
+    }
     return _contextLocation;
   }
 
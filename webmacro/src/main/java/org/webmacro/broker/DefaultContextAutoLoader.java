@@ -24,6 +24,8 @@ public class DefaultContextAutoLoader
   private Broker _broker;
   private Map<String, ContextObjectFactory> _factories =
       new ConcurrentHashMap<String, ContextObjectFactory>();
+  // objects of the StatelessContextObjectFactory tools, once they have been asked for
+  private Map<String, Object> _shared = new ConcurrentHashMap<String, Object>();
 
   @Override
   public void init(Broker b,
@@ -38,8 +40,25 @@ public class DefaultContextAutoLoader
                     Context context)
       throws PropertyException
   {
+    Object o = _shared.get(name);
+    if (o != null)
+      return o;
     ContextObjectFactory f = _factories.get(name);
-    return f == null ? null : f.get(context);
+    if (f == null)
+      return null;
+    o = f.get(context);
+    if (o != null && f instanceof StatelessContextObjectFactory)
+      _shared.put(name, o);
+    return o;
+  }
+
+  /**
+   * Return the object every Context shares for the named tool, or null if the tool is not a
+   * StatelessContextObjectFactory or has not been asked for yet.
+   */
+  public Object getShared(String name)
+  {
+    return _shared.get(name);
   }
 
   /**
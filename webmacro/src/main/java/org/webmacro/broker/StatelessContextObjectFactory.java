@@ -0,0 +1,22 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.broker;
+
+/**
+ * A ContextObjectFactory whose get() returns the same object for every Context, and whose object
+ * keeps no per-request state. A loader may call get() once and hand the result to every Context,
+ * and a recycled Context may keep it from one request to the next.
+ */
+public interface StatelessContextObjectFactory
+  extends ContextObjectFactory
+{
+}
@@ -14,6 +14,7 @@ package org.webmacro.directive;
 import org.webmacro.engine.BuildContext;
 import org.webmacro.engine.BuildException;
 import org.webmacro.engine.Builder;
+import org.webmacro.engine.VariableBuilder;
 
 /**
  * ArgsHolder is a container for directive arguments. The parser creates and populates the
@@ -94,6 +95,8 @@ public final class ArgsHolder
     int index = findArgIndex(id);
 
     Object o = buildArgs[index];
+    if (o instanceof VariableBuilder && args[index].type == Directive.ArgType_LVALUE)
+      return ((VariableBuilder) o).buildTarget(bc);
     return (o instanceof Builder) ? ((Builder) o).build(bc) : o;
   }
 
@@ -17,6 +17,7 @@ import org.webmacro.PropertyException;
 import org.webmacro.engine.Block;
 import org.webmacro.engine.BuildContext;
 import org.webmacro.engine.BuildException;
+import org.webmacro.engine.Expression;
 import org.webmacro.engine.UndefinedMacro;
 import org.webmacro.engine.Variable;
 
@@ -147,12 +148,12 @@ public class CountDirective
 
       if (step > 0) {
         for (; start <= end; start += step) {
-          _iterator.setValue(context, Integer.valueOf(start));
+          _iterator.setValue(context, ForeachDirective.boxIndex(start));
           _body.write(out, context);
         }
       } else if (step < 0) {
         for (; start >= end; start += step) {
-          _iterator.setValue(context, Integer.valueOf(start));
+          _iterator.setValue(context, ForeachDirective.boxIndex(start));
           _body.write(out, context);
         }
       } else {
@@ -167,6 +168,8 @@ public class CountDirective
                         Object o)
       throws PropertyException
   {
+    if (o instanceof Expression.ArithmeticOperation)
+      return (int) ((Expression.ArithmeticOperation) o).evaluateLong(context);
     if (o != null) {
       while (o instanceof Macro && !(o == UndefinedMacro.getInstance())) {
         o = ((Macro) o).evaluate(context);
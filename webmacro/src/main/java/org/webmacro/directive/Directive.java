@@ -76,9 +76,11 @@ public abstract class Directive
       throws PropertyException
   {
     try {
-      FastWriter fw = FastWriter.getInstance(context.getBroker());
+      FastWriter fw = FastWriter.getCaptureInstance(context);
       write(fw, context);
-      return fw.toString();
+      String ret = fw.toString();
+      fw.release();
+      return ret;
     } catch (IOException e) {
       _log.error("Directive.evaluate: IO exception on write to StringWriter", e);
       return "";
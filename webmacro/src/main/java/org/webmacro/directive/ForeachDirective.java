@@ -13,6 +13,8 @@ package org.webmacro.directive;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
 
 import org.webmacro.Context;
 import org.webmacro.FastWriter;
@@ -28,6 +30,17 @@ import org.webmacro.engine.Variable;
 
 /**
  * Implements iteration through a list or an array with various options.
+ * <p>
+ * Arrays and RandomAccess lists are walked by index; anything else through the Iterator the
+ * broker's PropertyOperatorCache finds for it.
+ * <p>
+ * With <code>status $s</code>, $s is set to a {@link Status} telling the body whether this is
+ * the first or last element and how many have been written. No variable is set unless the loop
+ * names one, so a $foreach or any other variable of the template is left alone:
+ *
+ * <pre>
+ * #foreach $x in $list status $s { #if ($s.First) {[} $x #if ($s.Last) {]} #else {,} }
+ * </pre>
  */
 public class ForeachDirective
   extends Directive
@@ -43,26 +56,33 @@ public class ForeachDirective
   private static final int FOREACH_LIMIT = 8;
   private static final int FOREACH_FROM_K = 9;
   private static final int FOREACH_FROM = 10;
+  private static final int FOREACH_STATUS_K = 11;
+  private static final int FOREACH_STATUS = 12;
 
   private static final UndefinedMacro UNDEF = UndefinedMacro.getInstance();
 
-  private Variable target, index;
+  // boxed index values, shared by all loops and grown to fit the longest loop seen, up to a limit
+  private static final int MAX_CACHED_INDEX = 1 << 16;
+  private static volatile Integer[] __indexes = new Integer[0];
+
+  private Variable target, index, statusVar;
   private Object list, indexFromExpr, limitExpr;
   private Macro body;
 
   // Syntax:
   // #foreach list-var in list-expr
-  // [ limit n ] [ indexing $i [ from m ] ]
+  // [ limit n ] [ indexing $i [ from m ] ] [ status $s ]
   // { block }
 
   private static final ArgDescriptor[] myArgs =
       new ArgDescriptor[] { new LValueArg(FOREACH_TARGET), new KeywordArg(FOREACH_IN_K, "in"),
-          new RValueArg(FOREACH_LIST), new OptionChoice(2), new OptionalGroup(3),
+          new RValueArg(FOREACH_LIST), new OptionChoice(3), new OptionalGroup(3),
           new KeywordArg(FOREACH_INDEXING_K, "indexing"), new LValueArg(FOREACH_INDEX),
           new OptionalGroup(2), new KeywordArg(FOREACH_FROM_K, "from"),
           new RValueArg(FOREACH_FROM), new OptionalGroup(2),
           new KeywordArg(FOREACH_LIMIT_K, "limit"), new RValueArg(FOREACH_LIMIT),
-          new BlockArg(FOREACH_BODY) };
+          new OptionalGroup(2), new KeywordArg(FOREACH_STATUS_K, "status"),
+          new LValueArg(FOREACH_STATUS), new BlockArg(FOREACH_BODY) };
 
   private static final DirectiveDescriptor myDescr =
       new DirectiveDescriptor("foreach", null, myArgs, null);
@@ -80,6 +100,7 @@ public class ForeachDirective
     try {
       target = (Variable) builder.getArg(FOREACH_TARGET, bc);
       index = (Variable) builder.getArg(FOREACH_INDEX, bc);
+      statusVar = (Variable) builder.getArg(FOREACH_STATUS, bc);
     } catch (ClassCastException e) {
       throw new NotVariableBuildException(myDescr.name, e);
     }
@@ -103,7 +124,9 @@ public class ForeachDirective
     while (l instanceof Macro && l != UNDEF)
       l = ((Macro) l).evaluate(context);
 
-    if (limitExpr != null) {
+    if (limitExpr instanceof Expression.ArithmeticOperation) {
+      loopLimit = (int) ((Expression.ArithmeticOperation) limitExpr).evaluateLong(context);
+    } else if (limitExpr != null) {
       limit = limitExpr;
       while (limit instanceof Macro && limit != UNDEF)
         limit = ((Macro) limit).evaluate(context);
@@ -115,7 +138,9 @@ public class ForeachDirective
       }
     }
 
-    if (index != null && indexFromExpr != null) {
+    if (index != null && indexFromExpr instanceof Expression.ArithmeticOperation) {
+      loopStart = (int) ((Expression.ArithmeticOperation) indexFromExpr).evaluateLong(context);
+    } else if (index != null && indexFromExpr != null) {
       from = indexFromExpr;
       while (from instanceof Macro && from != UNDEF)
         from = ((Macro) from).evaluate(context);
@@ -127,25 +152,66 @@ public class ForeachDirective
       }
     }
 
-    Iterator<?> iter;
-    try {
-      iter = context.getBroker().__propertyOperators.getIterator(l);
-    } catch (Exception e) {
-      String warning = "#foreach: ";
-      if (list instanceof Variable)
-        warning += "$" + ((Variable) list).getVariableName();
-      else
-        warning += list;
-
-      warning += ": " + e.getMessage();
-      writeWarning(warning, context, out, e);
-      return;
+    Object[] array = null;
+    List<?> indexed = null;
+    Object primitives = null;
+    Iterator<?> iter = null;
+    int size = Integer.MAX_VALUE;
+    if (l instanceof Object[]) {
+      array = (Object[]) l;
+      size = array.length;
+    } else if (l instanceof List<?> && l instanceof RandomAccess) {
+      indexed = (List<?>) l;
+      size = indexed.size();
+    } else if (l != null && l.getClass().isArray()) {
+      primitives = l;
+      size = java.lang.reflect.Array.getLength(l);
+    } else {
+      try {
+        iter = context.getBroker().__propertyOperators.getIterator(l);
+      } catch (Exception e) {
+        String warning = "#foreach: ";
+        if (list instanceof Variable)
+          warning += "$" + ((Variable) list).getVariableName();
+        else
+          warning += list;
+
+        warning += ": " + e.getMessage();
+        writeWarning(warning, context, out, e);
+        return;
+      }
+    }
+    if (loopLimit != -1 && loopLimit < size)
+      size = loopLimit;
+
+    Status status = null;
+    if (statusVar != null) {
+      status = new Status();
+      try {
+        statusVar.setValue(context, status);
+      } catch (PropertyException e) {
+        writeWarning("#foreach: Unable to set loop status", context, out, e);
+        status = null;
+      }
     }
-    while (iter.hasNext() && ((loopLimit == -1) || (loopLimit > loopIndex))) {
+    while (loopIndex < size && (iter == null || iter.hasNext())) {
       try {
-        target.setValue(context, iter.next());
+        Object value;
+        if (array != null)
+          value = array[loopIndex];
+        else if (indexed != null)
+          value = indexed.get(loopIndex);
+        else if (primitives != null)
+          value = element(primitives, loopIndex);
+        else
+          value = iter.next();
+        if (status != null) {
+          status._count = loopIndex + 1;
+          status._last = (loopIndex + 1 == size) || (iter != null && !iter.hasNext());
+        }
+        target.setValue(context, value);
         if (index != null)
-          index.setValue(context, new Integer(loopIndex + loopStart));
+          index.setValue(context, boxIndex(loopIndex + loopStart));
       } catch (PropertyException e) {
         String errorText = "#foreach: Unable to set list index";
         writeWarning(errorText, context, out, e);
@@ -157,6 +223,93 @@ public class ForeachDirective
     }
   }
 
+  /**
+   * Return element i of a primitive array, boxed through valueOf so that small values are shared.
+   */
+  private static Object element(Object array,
+                                int i)
+  {
+    if (array instanceof int[])
+      return Integer.valueOf(((int[]) array)[i]);
+    else if (array instanceof long[])
+      return Long.valueOf(((long[]) array)[i]);
+    else if (array instanceof char[])
+      return Character.valueOf(((char[]) array)[i]);
+    else if (array instanceof byte[])
+      return Byte.valueOf(((byte[]) array)[i]);
+    else if (array instanceof boolean[])
+      return Boolean.valueOf(((boolean[]) array)[i]);
+    else if (array instanceof short[])
+      return Short.valueOf(((short[]) array)[i]);
+    else
+      return java.lang.reflect.Array.get(array, i);
+  }
+
+  /**
+   * Return n boxed, from a cache for loop indexes so that long loops do not make a new Integer on
+   * every pass.
+   */
+  static Integer boxIndex(int n)
+  {
+    Integer[] indexes = __indexes;
+    if (n >= 0 && n < indexes.length)
+      return indexes[n];
+    if (n < 0 || n >= MAX_CACHED_INDEX)
+      return Integer.valueOf(n);
+    int size = Math.min(MAX_CACHED_INDEX, Math.max(n + 1, Math.max(128, indexes.length * 2)));
+    Integer[] grown = new Integer[size];
+    System.arraycopy(indexes, 0, grown, 0, indexes.length);
+    for (int i = indexes.length; i < size; i++)
+      grown[i] = Integer.valueOf(i);
+    __indexes = grown;
+    return grown[n];
+  }
+
+  /**
+   * What the <code>status</code> variable of a loop is while its body is written. There is one
+   * per loop rather than one per element, so it must not be kept past the element it describes.
+   */
+  public static final class Status
+  {
+
+    int _count;
+    boolean _last;
+
+    Status()
+    {
+    }
+
+    /**
+     * Return true for the first element.
+     */
+    public boolean isFirst()
+    {
+      return _count == 1;
+    }
+
+    /**
+     * Return true for the last element the loop will write.
+     */
+    public boolean isLast()
+    {
+      return _last;
+    }
+
+    /**
+     * Return how many elements have been written, counting this one.
+     */
+    public int getCount()
+    {
+      return _count;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "#foreach element " + _count;
+    }
+  }
+
   @Override
   public void accept(TemplateVisitor v)
   {
@@ -169,6 +322,8 @@ public class ForeachDirective
       v.visitDirectiveArg("ForeachFrom", indexFromExpr);
     if (limitExpr != null)
       v.visitDirectiveArg("ForeachLimit", limitExpr);
+    if (statusVar != null)
+      v.visitDirectiveArg("ForeachStatus", statusVar);
     v.visitDirectiveArg("ForeachBlock", body);
     v.endDirective();
   }
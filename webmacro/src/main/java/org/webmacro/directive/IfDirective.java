@@ -169,7 +169,7 @@ class IfDirective
     for (int i = 0; i < nConditions; i++) {
       boolean b = false;
 
-      b = Expression.isTrue(conditions[i].evaluate(context));
+      b = Expression.isTrue(conditions[i], context);
       if (b) {
         blocks[i].write(out, context);
         return;
@@ -12,7 +12,8 @@
 package org.webmacro.directive;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.StringTokenizer;
@@ -58,8 +59,9 @@ import org.webmacro.engine.BuildException;
  * <li>local filesystem
  * <li>active classpath
  * <p>
- * Files included as text are located once. Changes to the included file will not be found by
- * WebMacro!
+ * A file included as text by a literal filename is read when the template is built, and the
+ * template is built again if the file changes. One whose filename is only known at runtime is
+ * cached by the URLProvider, in the form it is written out, and read again when it changes.
  * <p>
  * Examples:
  * 
@@ -89,7 +91,8 @@ import org.webmacro.engine.BuildException;
  * explicitly set in <code>WebMacro.properties</code>, defaults to the system classpath (standalone
  * and JSDK 1.0), or the "web-app" directory (JSDK 2.x).
  * <p>
- * Files included as templates are located and conditionally reloaded/parsed when they change.
+ * Files included as templates are located and conditionally reloaded/parsed when they change. A
+ * template included many times while rendering one page is only located the first time.
  * <p>
  * Examples:
  * 
@@ -112,8 +115,8 @@ import org.webmacro.engine.BuildException;
  * included file <b>are</b> made available to the outer template. "Macro" templates are found using
  * the same TemplatePath settings as "#include as template".
  * <p>
- * Files included as macros are located once. Changes to the included template will not be found by
- * WebMacro!
+ * Files included as macros are located when the including template is built. If the included
+ * template changes, the including template is built again.
  * <p>
  * Exapmles:
  * 
@@ -220,6 +223,26 @@ public class IncludeDirective
    */
   protected String _directiveName;
 
+  /** The text last included at runtime, and its bytes in the encoding it was written in. */
+  private volatile EncodedText _encoded;
+
+  private static final class EncodedText
+  {
+
+    final String text;
+    final String encoding;
+    final byte[] bytes;
+
+    EncodedText(String text,
+                String encoding,
+                byte[] bytes)
+    {
+      this.text = text;
+      this.encoding = encoding;
+      this.bytes = bytes;
+    }
+  }
+
   /**
    * Build this use of the directive.
    * <p>
@@ -273,6 +296,7 @@ public class IncludeDirective
         // we're a static type, need to
         // include the file (by returning it) now,
         // during build time
+        bc.addDependency("url", _strFilename);
         try {
           return getThingToInclude(broker, _type, _strFilename);
         } catch (Exception e) {
@@ -283,6 +307,7 @@ public class IncludeDirective
         // and merge its macros into our build context.
         // then we return the template so its contents can also be included
         Template t = null;
+        bc.addDependency("template", _strFilename);
         try {
           t = getTemplate(broker, _strFilename);
           bc.mergeConstants(t);
@@ -321,15 +346,18 @@ public class IncludeDirective
     Broker broker = context.getBroker();
 
     // the filename arg passed to us was a Macro, so
-    // evaluate and check it now
+    // evaluate and check it now. Several threads may be running this
+    // directive at once, so the result is kept in locals only
+    String filename = _strFilename;
     if (_macFilename != null) {
-      _strFilename = _macFilename.evaluate(context).toString();
-      if (_strFilename == null || _strFilename.length() == 0) {
-        throw makePropertyException("Filename cannot be null or empty");
+      Object o = _macFilename.evaluate(context);
+      filename = (o == null) ? null : o.toString();
+      if (filename == null || filename.length() == 0) {
+        throw makePropertyException(filename, "Filename cannot be null or empty", null);
       }
     }
 
-    if (_log.isDebugEnabled() && context.getCurrentLocation().indexOf(_strFilename) > -1) {
+    if (_log.isDebugEnabled() && context.getCurrentLocation().indexOf(filename) > -1) {
       // when in debug mode, output a warning if a template tries to include itself
       // there are situations where this is desired, but it's good to make
       // the user aware of what they're doing
@@ -338,18 +366,32 @@ public class IncludeDirective
 
     // this should only be true if StrictCompatibility is set to false
     // and "as <something>" wasn't specified in the arg list
-    if (_type == TYPE_DYNAMIC)
-      _type = guessType(broker, _strFilename);
-
-    _log.debug("Including '"
-               + _strFilename
-               + "' as "
-               + ((_type == TYPE_MACRO) ? "MACRO" : (_type == TYPE_TEMPLATE)
-                   ? "TEMPLATE"
-                   : (_type == TYPE_TEXT) ? "TEXT" : "UNKNOWN.  Throwing exception"));
-
-    Object toInclude = getThingToInclude(broker, _type, _strFilename);
-    switch (_type) {
+    int type = _type;
+    if (type == TYPE_DYNAMIC)
+      type = guessType(broker, filename);
+
+    if (_log.isDebugEnabled())
+      _log.debug("Including '"
+                 + filename
+                 + "' as "
+                 + ((type == TYPE_MACRO) ? "MACRO" : (type == TYPE_TEMPLATE)
+                     ? "TEMPLATE"
+                     : (type == TYPE_TEXT) ? "TEXT" : "UNKNOWN.  Throwing exception"));
+
+    Object toInclude;
+    if (type == TYPE_TEMPLATE || type == TYPE_MACRO) {
+      // a page that includes the same template for each row of a list
+      // only asks the template provider for it once
+      Context.TemplateEvaluationContext tec = context.getTemplateEvaluationContext();
+      toInclude = tec.getIncluded(filename);
+      if (toInclude == null) {
+        toInclude = getTemplate(broker, filename);
+        tec.putIncluded(filename, (Template) toInclude);
+      }
+    } else {
+      toInclude = getThingToInclude(broker, type, filename);
+    }
+    switch (type) {
       case TYPE_MACRO:
         // during runtime evaluation of a template,
         // a TYPE_MACRO doesn't really work as expected.
@@ -362,13 +404,34 @@ public class IncludeDirective
 
       case TYPE_TEXT:
         // static types are strings
-        out.write(toInclude.toString());
+        writeText(out, toInclude.toString());
         break;
 
       default:
         // should never happen
-        throw makePropertyException("Unrecognized file type: " + _type);
+        throw makePropertyException(filename, "Unrecognized file type: " + type, null);
+    }
+  }
+
+  /**
+   * Write text included at runtime. The URLProvider hands out the same String until the file
+   * changes, so the bytes it encodes to are kept and written as they are until then.
+   */
+  private void writeText(FastWriter out,
+                         String text)
+      throws IOException
+  {
+    if (out.isCapturing()) {
+      out.write(text);
+      return;
+    }
+    String encoding = out.getEncoding();
+    EncodedText e = _encoded;
+    if (e == null || e.text != text || !e.encoding.equals(encoding)) {
+      e = new EncodedText(text, encoding, text.getBytes(encoding));
+      _encoded = e;
     }
+    out.writeStatic(e.bytes);
   }
 
   /**
@@ -443,12 +506,13 @@ public class IncludeDirective
 
       case TYPE_DYNAMIC:
         // this should never happen
-        throw makePropertyException("Internal Error.  Never guessed file type");
+        throw makePropertyException(filename, "Internal Error.  Never guessed file type", null);
 
       default:
         // default case should never happen b/c we take care of this
         // during build()
-        throw makePropertyException("Internal Error.  Unrecognized file type: " + type);
+        throw makePropertyException(filename, "Internal Error.  Unrecognized file type: " + type,
+                                    null);
     }
   }
 
@@ -462,11 +526,11 @@ public class IncludeDirective
     try {
       return (Template) b.get("template", name);
     } catch (NotFoundException nfe) {
-      throw makePropertyException("Not found by template provider");
+      throw makePropertyException(name, "Not found by template provider", null);
     } catch (ResourceException re) {
-      throw makePropertyException("Unable to get template", re);
+      throw makePropertyException(name, "Unable to get template", re);
     } catch (Exception e) {
-      throw makePropertyException("Unexpected exception while getting template");
+      throw makePropertyException(name, "Unexpected exception while getting template", null);
     }
   }
 
@@ -490,29 +554,33 @@ public class IncludeDirective
       try {
         url = b.getResource(name);
         if (url == null) // doh! the Broker couldn't find it either. Guess it doesn't exist
-          throw makePropertyException("Resource not found by URL provider or Broker");
+          throw makePropertyException(name, "Resource not found by URL provider or Broker", null);
 
         // open a URLConnection...
         URLConnection conn = url.openConnection();
         StringBuilder sb = new StringBuilder();
-        InputStream in = conn.getInputStream();
         String enc = conn.getContentEncoding();
         if (enc == null)
           enc = b.getSetting("TemplateEncoding");
 
-        // ...and stream the contents of the URL into a String
-        int cnt = 0;
-        byte[] buff = new byte[4096];
-        while ((cnt = in.read(buff)) > 0) {
-          sb.append(new String(buff, 0, cnt, enc));
+        // ...and stream the contents of the URL into a String. The Reader keeps
+        // the bytes of a character that is split between two reads
+        Reader in = new InputStreamReader(conn.getInputStream(), enc);
+        try {
+          int cnt = 0;
+          char[] buff = new char[4096];
+          while ((cnt = in.read(buff)) > 0) {
+            sb.append(buff, 0, cnt);
+          }
+        } finally {
+          in.close();
         }
-        in.close();
 
         // return the string form of the resource.
         // This is what will be included in the template
         return sb.toString();
       } catch (IOException ioe) {
-        throw makePropertyException("Error streaming file from: " + url, ioe);
+        throw makePropertyException(name, "Error streaming file from: " + url, ioe);
       }
     }
   }
@@ -544,15 +612,11 @@ public class IncludeDirective
       return new BuildException(message);
   }
 
-  private PropertyException makePropertyException(String message)
-  {
-    return makePropertyException(message, null);
-  }
-
-  private PropertyException makePropertyException(String message,
+  private PropertyException makePropertyException(String filename,
+                                                  String message,
                                                   Exception cause)
   {
-    message = "#" + _directiveName + " " + _strFilename + ": " + message;
+    message = "#" + _directiveName + " " + filename + ": " + message;
     if (cause != null)
       return new PropertyException(message, cause);
     else
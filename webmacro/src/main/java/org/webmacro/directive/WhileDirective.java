@@ -123,7 +123,9 @@ class WhileDirective
     Object limit;
     int loopLimit = 1000000, loopIndex = 0;
 
-    if (_limitExpr != null) {
+    if (_limitExpr instanceof Expression.ArithmeticOperation) {
+      loopLimit = (int) ((Expression.ArithmeticOperation) _limitExpr).evaluateLong(context);
+    } else if (_limitExpr != null) {
       limit = _limitExpr;
       while (limit instanceof Macro && limit != UNDEF) {
         limit = ((Macro) limit).evaluate(context);
@@ -138,7 +140,7 @@ class WhileDirective
 
     // evaluate the condition against the current context
     if (_macroCondition != null)
-      boolExpression = Expression.isTrue(_macroCondition.evaluate(context));
+      boolExpression = Expression.isTrue(_macroCondition, context);
 
     // while the expression is true and loopLimit <0 or loopIndex <
     // loopLimit not exeeded.
@@ -147,7 +149,7 @@ class WhileDirective
 
       // evaluate the condition against the current context.
       if (_macroCondition != null)
-        boolExpression = Expression.isTrue(_macroCondition.evaluate(context));
+        boolExpression = Expression.isTrue(_macroCondition, context);
       ++loopIndex;
     }
 
@@ -12,6 +12,7 @@
 package org.webmacro.engine;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -34,11 +35,38 @@ final public class Block
 
   static Logger _log = LoggerFactory.getLogger(Block.class);
 
+  /**
+   * How many output encodings a Block remembers its encoded strings for. Blocks written in any
+   * further encodings go through the Encoder cache each time.
+   */
+  private static final int MAX_ENCODINGS = 4;
+
+  private static final EncodedStrings[] NO_ENCODINGS = new EncodedStrings[0];
+
+  /**
+   * The strings of this block encoded in one particular output encoding. Instances are immutable
+   * so they can be read without locking once published.
+   */
+  private static final class EncodedStrings
+  {
+
+    final String encoding;
+    final byte[][] bytes;
+
+    EncodedStrings(String encoding,
+                   byte[][] bytes)
+    {
+      this.encoding = encoding;
+      this.bytes = bytes;
+    }
+  }
+
   private final String[] _strings;
   private final Macro[] _macros;
   private final int[] _lineNos, _colNos;
 
   private final Encoder.Block _block;
+  private volatile EncodedStrings[] _encoded = NO_ENCODINGS;
   private final int _length;
   private final int _remainder;
   private String _name;
@@ -82,12 +110,26 @@ final public class Block
                           final Context context)
       throws PropertyException, IOException
   {
-    final byte[][] bcontent = out.getEncoder().encode(_block);
-    byte[] b;
     Context.TemplateEvaluationContext teC = context.getTemplateEvaluationContext();
     String oldName = teC._templateName;
 
     teC._templateName = _name;
+    if (out.isCapturing()) {
+      // the text is wanted as characters, so don't encode it
+      int i = 0;
+      while (i < _length) {
+        out.writeStatic(_strings[i]);
+        teC._lineNo = this.getLineNo(i);
+        teC._columnNo = this.getColNo(i);
+        _macros[i++].write(out, context);
+      }
+      out.writeStatic(_strings[_length]);
+      teC._templateName = oldName;
+      return;
+    }
+
+    final byte[][] bcontent = getEncodedStrings(out);
+    byte[] b;
     //
     // The _remainder is 10 minus the number of bytes left.
     // If we need to write out 3 bytes remainder will be 7,
@@ -98,55 +140,55 @@ final public class Block
     switch (_remainder) {
       case 1:
         b = bcontent[i];
-        out.write(b, 0, b.length);
+        out.writeStatic(b);
         teC._lineNo = this.getLineNo(i);
         teC._columnNo = this.getColNo(i);
         _macros[i++].write(out, context);
       case 2:
         b = bcontent[i];
-        out.write(b, 0, b.length);
+        out.writeStatic(b);
         teC._lineNo = this.getLineNo(i);
         teC._columnNo = this.getColNo(i);
         _macros[i++].write(out, context);
       case 3:
         b = bcontent[i];
-        out.write(b, 0, b.length);
+        out.writeStatic(b);
         teC._lineNo = this.getLineNo(i);
         teC._columnNo = this.getColNo(i);
         _macros[i++].write(out, context);
       case 4:
         b = bcontent[i];
-        out.write(b, 0, b.length);
+        out.writeStatic(b);
         teC._lineNo = this.getLineNo(i);
         teC._columnNo = this.getColNo(i);
         _macros[i++].write(out, context);
       case 5:
         b = bcontent[i];
-        out.write(b, 0, b.length);
+        out.writeStatic(b);
         teC._lineNo = this.getLineNo(i);
         teC._columnNo = this.getColNo(i);
         _macros[i++].write(out, context);
       case 6:
         b = bcontent[i];
-        out.write(b, 0, b.length);
+        out.writeStatic(b);
         teC._lineNo = this.getLineNo(i);
         teC._columnNo = this.getColNo(i);
         _macros[i++].write(out, context);
       case 7:
         b = bcontent[i];
-        out.write(b, 0, b.length);
+        out.writeStatic(b);
         teC._lineNo = this.getLineNo(i);
         teC._columnNo = this.getColNo(i);
         _macros[i++].write(out, context);
       case 8:
         b = bcontent[i];
-        out.write(b, 0, b.length);
+        out.writeStatic(b);
         teC._lineNo = this.getLineNo(i);
         teC._columnNo = this.getColNo(i);
         _macros[i++].write(out, context);
       case 9:
         b = bcontent[i];
-        out.write(b, 0, b.length);
+        out.writeStatic(b);
         teC._lineNo = this.getLineNo(i);
         teC._columnNo = this.getColNo(i);
         _macros[i++].write(out, context);
@@ -159,61 +201,90 @@ final public class Block
 
     while (i < _length) {
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
       b = bcontent[i];
-      out.write(b, 0, b.length);
+      out.writeStatic(b);
       teC._lineNo = this.getLineNo(i);
       teC._columnNo = this.getColNo(i);
       _macros[i++].write(out, context);
     }
     b = bcontent[_length];
-    out.write(b, 0, b.length);
+    out.writeStatic(b);
     teC._templateName = oldName;
   }
 
+  /**
+   * Return our strings encoded in the encoding of the supplied FastWriter. The first time a block
+   * is written in a given encoding the strings are fetched from the writer's Encoder and
+   * remembered, so subsequent writes need neither a cache lookup nor a hash of the strings.
+   */
+  private byte[][] getEncodedStrings(final FastWriter out)
+      throws UnsupportedEncodingException
+  {
+    final String encoding = out.getEncoding();
+    final EncodedStrings[] encoded = _encoded;
+    for (int i = 0; i < encoded.length; i++) {
+      final EncodedStrings e = encoded[i];
+      if (e.encoding == encoding || e.encoding.equals(encoding)) {
+        return e.bytes;
+      }
+    }
+
+    final byte[][] bytes = out.getEncoder().encode(_block);
+    if (encoded.length < MAX_ENCODINGS) {
+      // losing a concurrent update here is harmless: the other
+      // encoding will simply be looked up again next time
+      EncodedStrings[] grown = new EncodedStrings[encoded.length + 1];
+      System.arraycopy(encoded, 0, grown, 0, encoded.length);
+      grown[encoded.length] = new EncodedStrings(encoding, bytes);
+      _encoded = grown;
+    }
+    return bytes;
+  }
+
   public String getTemplateName()
   {
     return _name;
@@ -335,10 +406,10 @@ final public class Block
       throws PropertyException
   {
     try {
-      FastWriter fw = FastWriter.getInstance(context.getBroker());
+      FastWriter fw = FastWriter.getCaptureInstance(context);
       write(fw, context);
       String ret = fw.toString();
-      fw.close();
+      fw.release();
       return ret;
     } catch (IOException e) {
       _log.error("StringWriter threw an IOException!", e);
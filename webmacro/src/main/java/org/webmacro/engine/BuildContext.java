@@ -11,8 +11,11 @@
 
 package org.webmacro.engine;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.webmacro.Broker;
 import org.webmacro.Context;
@@ -20,6 +23,8 @@ import org.webmacro.Macro;
 import org.webmacro.NotFoundException;
 import org.webmacro.ResourceException;
 import org.webmacro.Template;
+import org.webmacro.resource.TemplateDependencies;
+import org.webmacro.util.SlotMap;
 
 /**
  * Contains data structures which are manipulated during the builder phase of parsing. It extends
@@ -35,10 +40,13 @@ public class BuildContext
 
   private final Map<String, Object> _types = new HashMap<String, Object>();
   private final Map<String, MacroDefinition> _macros = new HashMap<String, MacroDefinition>();
+  private Set<String> _dependencies = null;
 
   public BuildContext(Broker b)
   {
-    super(b);
+    // the map becomes the template's parameters, which are read
+    // concurrently, so it must not be a SlotMap
+    super(b, new HashMap<Object, Object>());
   }
 
   public final Parser getParser(String pname)
@@ -109,6 +117,30 @@ public class BuildContext
       super.putAll(params);
   }
 
+  /**
+   * Record that what is being built copies something from the named resource, as #include as
+   * macro and #include as text do, so that it is built again when that changes.
+   * 
+   * @param type
+   *          the resource type, as in Broker.get(type, name)
+   * @see TemplateDependencies
+   */
+  public void addDependency(String type,
+                            String name)
+  {
+    if (_dependencies == null)
+      _dependencies = new LinkedHashSet<String>();
+    _dependencies.add(TemplateDependencies.key(type, name));
+  }
+
+  /**
+   * The keys of the resources recorded by addDependency().
+   */
+  public Set<String> getDependencies()
+  {
+    return (_dependencies == null) ? Collections.<String> emptySet() : _dependencies;
+  }
+
   /**
    * Return the map of MacroDefinitions.
    */
@@ -117,6 +149,17 @@ public class BuildContext
     return _macros;
   }
 
+  /**
+   * Give a name that a template assigns to a slot, if the broker has one to spare, so that variables
+   * referring to it which are built from now on can find its value without a lookup by name.
+   */
+  public void declareLocal(String name)
+  {
+    if (getVariableType(name) == Variable.PROPERTY_TYPE && !containsKey(name)) {
+      getBroker().getSlotRegistry().defineSlot(name);
+    }
+  }
+
   /**
    * Create a variable (or resolve a constant at build time). Used by various build() routines.
    */
@@ -148,10 +191,16 @@ public class BuildContext
           v = (c.length == 1) ? expansion : new ConstantPropertyVariable(expansion, c);
         }
       } else {
-        v =
-            (c.length == 1)
-                ? (Object) new SimplePropertyVariable(c)
-                : (Object) new PropertyVariable(c);
+        SlotMap.Registry slots = getBroker().getSlotRegistry();
+        int slot = (c.length == 1 && c[0] instanceof String) ? slots.findSlot(firstName) : -1;
+        if (slot >= 0) {
+          v = new SlotVariable(c, slots, slot);
+        } else {
+          v =
+              (c.length == 1)
+                  ? (Object) new SimplePropertyVariable(c)
+                  : (Object) new PropertyVariable(c);
+        }
       }
     } else if (type == Variable.LOCAL_TYPE) {
       v = new GlobalVariable(c);
@@ -26,6 +26,11 @@ public class ConstantPropertyVariable
 
   private Object value;
 
+  /**
+   * Remembers how the names were resolved last time.
+   */
+  private final PropertyCallSite _site;
+
   /**
    * No special initialization
    */
@@ -33,6 +38,7 @@ public class ConstantPropertyVariable
                            Object names[])
   {
     super(names);
+    _site = new PropertyCallSite(names.length);
     this.value = value;
   }
 
@@ -49,7 +55,7 @@ public class ConstantPropertyVariable
     if (value == null)
       throw new PropertyException.NullValueException(_names[0].toString());
     else
-      return context.getBroker().__propertyOperators.getProperty(context, value, _names, 1);
+      return context.getBroker().__propertyOperators.getProperty(context, value, _names, 1, _site);
   }
 
   /**
@@ -57,7 +57,7 @@ public class CrankyEvaluationExceptionHandler
 
     // if it's a PropertyException set the current context location
     if (problem instanceof PropertyException) {
-      ((PropertyException) problem).setContextLocation(context.getCurrentLocation());
+      ((PropertyException) problem).setContextLocation(context);
     } else {
       // else, wrap it
       problem =
@@ -83,7 +83,7 @@ public class CrankyEvaluationExceptionHandler
 
     // if it's a PropertyException set the current context location
     if (problem instanceof PropertyException) {
-      ((PropertyException) problem).setContextLocation(context.getCurrentLocation());
+      ((PropertyException) problem).setContextLocation(context);
     } else {
       // else, wrap it
       problem =
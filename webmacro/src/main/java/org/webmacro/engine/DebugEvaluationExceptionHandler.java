@@ -97,7 +97,7 @@ public class DebugEvaluationExceptionHandler
     } else {
       propEx = new PropertyException("Error expanding $" + variable.getVariableName());
     }
-    propEx.setContextLocation(context.getCurrentLocation());
+    propEx.setContextLocation(context);
     strError = propEx.getMessage();
 
     if ((context.containsKey("WMERROR")) && (context.get("WMERROR") instanceof ArrayList<?>)) {
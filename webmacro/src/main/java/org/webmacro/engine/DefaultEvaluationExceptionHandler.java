@@ -11,6 +11,8 @@
 
 package org.webmacro.engine;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.webmacro.Broker;
@@ -23,6 +25,10 @@ import org.webmacro.util.Settings;
  * under most error conditions. Users who are generating non-HTML output should replace the
  * ExceptionHandler in their context with one that generates the appropriate comments. This should
  * be the only place in WM where HTML comments are generated into the output.
+ * <p>
+ * A page that uses many undefined variables can log an error for each on every request. Setting
+ * ExceptionHandler.LogLimit to a positive number logs at most that many errors a minute; the first
+ * error logged in the following minute says how many were left out.
  * 
  * @author Brian Goetz
  * @since 0.96
@@ -34,6 +40,15 @@ public class DefaultEvaluationExceptionHandler
 
   static Logger _log = LoggerFactory.getLogger(DefaultEvaluationExceptionHandler.class);
 
+  public static final String LOG_LIMIT = "ExceptionHandler.LogLimit";
+
+  private static final long LOG_PERIOD = 60 * 1000L;
+
+  private int _logLimit = 0;
+  private volatile long _periodEnd = 0;
+  private final AtomicInteger _logged = new AtomicInteger();
+  private final AtomicInteger _unlogged = new AtomicInteger();
+
   public DefaultEvaluationExceptionHandler()
   {
   }
@@ -47,6 +62,36 @@ public class DefaultEvaluationExceptionHandler
   public void init(Broker b,
                    Settings config)
   {
+    _logLimit = config.getIntegerSetting(LOG_LIMIT, 0);
+  }
+
+  /**
+   * Return true if an error should be logged now: the log is on, and fewer than LogLimit errors
+   * have been logged this minute.
+   */
+  protected boolean shouldLog()
+  {
+    if (_log == null || !_log.isErrorEnabled())
+      return false;
+    if (_logLimit <= 0)
+      return true;
+    long now = System.currentTimeMillis();
+    if (now >= _periodEnd) {
+      synchronized (this) {
+        if (now >= _periodEnd) {
+          _periodEnd = now + LOG_PERIOD;
+          _logged.set(0);
+          int unlogged = _unlogged.getAndSet(0);
+          if (unlogged > 0)
+            _log.error(unlogged + " evaluation errors over the limit of " + _logLimit
+                       + " a minute were not logged");
+        }
+      }
+    }
+    if (_logged.incrementAndGet() <= _logLimit)
+      return true;
+    _unlogged.incrementAndGet();
+    return false;
   }
 
   @Override
@@ -58,7 +103,7 @@ public class DefaultEvaluationExceptionHandler
 
     // if we were given a ProperyException, record the context location.
     if (problem instanceof PropertyException) {
-      ((PropertyException) problem).setContextLocation(context.getCurrentLocation());
+      ((PropertyException) problem).setContextLocation(context);
     } else {
       // wrap the exception in a PropertyException
       problem =
@@ -68,7 +113,7 @@ public class DefaultEvaluationExceptionHandler
     }
 
     // log the warning message
-    if (_log != null) {
+    if (shouldLog()) {
       _log.error(problem.getMessage());
     }
 
@@ -94,7 +139,7 @@ public class DefaultEvaluationExceptionHandler
 
     // if we were given a ProperyException, record the context location.
     if (problem instanceof PropertyException) {
-      ((PropertyException) problem).setContextLocation(context.getCurrentLocation());
+      ((PropertyException) problem).setContextLocation(context);
     } else {
       // wrap the exception in a PropertyException
       problem =
@@ -104,7 +149,7 @@ public class DefaultEvaluationExceptionHandler
     }
 
     // log the error message
-    if (_log != null) {
+    if (shouldLog()) {
       _log.error(problem.getMessage());
     }
 
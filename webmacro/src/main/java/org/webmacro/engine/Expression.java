@@ -12,6 +12,9 @@
 package org.webmacro.engine;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
 
 import org.webmacro.Context;
 import org.webmacro.FastWriter;
@@ -23,6 +26,10 @@ import org.webmacro.Visitable;
 /**
  * All WM expressions derive from this base class. All expression and expression builder classes are
  * contained in this file.
+ * <p>
+ * Arithmetic and comparisons use the widest kind of number either operand needs: Integer, then
+ * Long, then Double (for a Float or Double), then BigDecimal (for a BigDecimal or BigInteger).
+ * Expressions whose operands are all constant are worked out when the template is built.
  */
 public abstract class Expression
 {
@@ -46,6 +53,50 @@ public abstract class Expression
     {
       out.write(evaluate(context).toString());
     }
+
+    /**
+     * Evaluate this expression as a condition. Subclasses that can answer without making a Boolean
+     * override this.
+     */
+    public boolean evaluateBoolean(Context context)
+        throws PropertyException
+    {
+      return isTrue(evaluate(context));
+    }
+
+    /**
+     * Evaluate this expression as a long. Subclasses that can answer without boxing the result
+     * override this.
+     * 
+     * @exception PropertyException
+     *              if the value is not a number
+     */
+    public long evaluateLong(Context context)
+        throws PropertyException
+    {
+      return numberValue(numberOrThrow(evaluate(context)));
+    }
+
+    /**
+     * Evaluate this expression as a double. Subclasses that can answer without boxing the result
+     * override this.
+     * 
+     * @exception PropertyException
+     *              if the value is not a number
+     */
+    public double evaluateDouble(Context context)
+        throws PropertyException
+    {
+      return ((Number) numberOrThrow(evaluate(context))).doubleValue();
+    }
+  }
+
+  private static Object numberOrThrow(Object o)
+      throws PropertyException
+  {
+    if (!isNumber(o))
+      throw new PropertyException("Expression requires a numeric value");
+    return o;
   }
 
   final private static Boolean TRUE = Boolean.TRUE;
@@ -64,19 +115,64 @@ public abstract class Expression
       return true;
   }
 
+  /**
+   * Evaluate o, if it is a Macro, and return whether the result is true. An expression is asked
+   * for evaluateBoolean(), so that no Boolean is made.
+   */
+  public static boolean isTrue(Object o,
+                               Context context)
+      throws PropertyException
+  {
+    if (o instanceof ExpressionBase)
+      return ((ExpressionBase) o).evaluateBoolean(context);
+    else if (o instanceof Macro)
+      return isTrue(((Macro) o).evaluate(context));
+    else
+      return isTrue(o);
+  }
+
   public static boolean isNumber(Object o)
   {
     return (o instanceof Number);
   }
 
+  // kinds of number, narrowest first; two numbers are combined as the wider of their kinds
+  private static final int INT = 0, LONG = 1, DOUBLE = 2, DECIMAL = 3;
+
+  private static int numberKind(Object o)
+  {
+    if (o instanceof Integer)
+      return INT;
+    else if (o instanceof Long)
+      return LONG;
+    else if (o instanceof Double || o instanceof Float)
+      return DOUBLE;
+    else if (o instanceof BigDecimal || o instanceof BigInteger)
+      return DECIMAL;
+    else
+      return INT;
+  }
+
+  private static int numberKind(Object l,
+                                Object r)
+  {
+    return Math.max(numberKind(l), numberKind(r));
+  }
+
   public static Object numberObject(long result,
                                     Object op1,
                                     Object op2)
   {
-    if (op1.getClass() == Long.class || op2.getClass() == Long.class)
-      return new Long(result);
+    return numberObject(result, numberKind(op1, op2));
+  }
+
+  private static Object numberObject(long result,
+                                     int kind)
+  {
+    if (kind == LONG)
+      return Long.valueOf(result);
     else
-      return new Integer((int) result);
+      return Integer.valueOf((int) result);
   }
 
   public static long numberValue(Object o)
@@ -84,6 +180,28 @@ public abstract class Expression
     return ((Number) o).longValue();
   }
 
+  private static double doubleValue(Object o)
+  {
+    return ((Number) o).doubleValue();
+  }
+
+  private static BigDecimal decimalValue(Object o)
+  {
+    if (o instanceof BigDecimal)
+      return (BigDecimal) o;
+    else if (o instanceof BigInteger)
+      return new BigDecimal((BigInteger) o);
+    else if (numberKind(o) == DOUBLE)
+      return BigDecimal.valueOf(doubleValue(o));
+    else
+      return BigDecimal.valueOf(numberValue(o));
+  }
+
+  private static String numberString(Object o)
+  {
+    return (numberKind(o) <= LONG) ? Long.toString(numberValue(o)) : o.toString();
+  }
+
   public abstract static class BinaryOperation
     extends ExpressionBase
   {
@@ -101,16 +219,23 @@ public abstract class Expression
                                    Object r)
         throws PropertyException;
 
-    @Override
-    public Object evaluate(Context context)
+    final Object evaluateLeft(Context context)
         throws PropertyException
     {
-      Object l, r;
+      return (_l instanceof Macro) ? ((Macro) _l).evaluate(context) : _l;
+    }
 
-      l = (_l instanceof Macro) ? ((Macro) _l).evaluate(context) : _l;
-      r = (_r instanceof Macro) ? ((Macro) _r).evaluate(context) : _r;
+    final Object evaluateRight(Context context)
+        throws PropertyException
+    {
+      return (_r instanceof Macro) ? ((Macro) _r).evaluate(context) : _r;
+    }
 
-      return operate(l, r);
+    @Override
+    public Object evaluate(Context context)
+        throws PropertyException
+    {
+      return operate(evaluateLeft(context), evaluateRight(context));
     }
 
     public abstract String getName();
@@ -135,6 +260,11 @@ public abstract class Expression
 
     public abstract Object operate(Object o);
 
+    final Object getOperand()
+    {
+      return _o;
+    }
+
     @Override
     public Object evaluate(Context context)
         throws PropertyException
@@ -170,17 +300,14 @@ public abstract class Expression
     public Object evaluate(Context context)
         throws PropertyException
     {
-      Object l, r;
-
-      l = (_l instanceof Macro) ? ((Macro) _l).evaluate(context) : _l;
-      if (!isTrue(l))
-        return FALSE;
-
-      r = (_r instanceof Macro) ? ((Macro) _r).evaluate(context) : _r;
-      if (!isTrue(r))
-        return FALSE;
+      return evaluateBoolean(context) ? TRUE : FALSE;
+    }
 
-      return TRUE;
+    @Override
+    public boolean evaluateBoolean(Context context)
+        throws PropertyException
+    {
+      return isTrue(_l, context) && isTrue(_r, context);
     }
 
     @Override
@@ -207,17 +334,14 @@ public abstract class Expression
     public Object evaluate(Context context)
         throws PropertyException
     {
-      Object l, r;
-
-      l = (_l instanceof Macro) ? ((Macro) _l).evaluate(context) : _l;
-      if (isTrue(l))
-        return TRUE;
-
-      r = (_r instanceof Macro) ? ((Macro) _r).evaluate(context) : _r;
-      if (isTrue(r))
-        return TRUE;
+      return evaluateBoolean(context) ? TRUE : FALSE;
+    }
 
-      return FALSE;
+    @Override
+    public boolean evaluateBoolean(Context context)
+        throws PropertyException
+    {
+      return isTrue(_l, context) || isTrue(_r, context);
     }
 
     @Override
@@ -247,23 +371,48 @@ public abstract class Expression
     {
       return (!Expression.isTrue(o)) ? TRUE : FALSE;
     }
+
+    @Override
+    public boolean evaluateBoolean(Context context)
+        throws PropertyException
+    {
+      return !isTrue(getOperand(), context);
+    }
   }
 
-  public static class AddOperation
+  /**
+   * An operation on two numbers. Subclasses do the arithmetic for each kind of number; this class
+   * picks the kind and checks the operands.
+   */
+  public abstract static class ArithmeticOperation
     extends BinaryOperation
   {
 
-    public AddOperation(Object l,
+    ArithmeticOperation(Object l,
                         Object r)
     {
       super(l,
             r);
     }
 
-    @Override
-    public String getName()
+    protected abstract long operate(long l,
+                                    long r)
+        throws PropertyException;
+
+    protected abstract double operate(double l,
+                                      double r)
+        throws PropertyException;
+
+    protected abstract BigDecimal operate(BigDecimal l,
+                                          BigDecimal r)
+        throws PropertyException;
+
+    private void checkOperands(Object l,
+                               Object r)
+        throws PropertyException
     {
-      return "Add";
+      if (!isNumber(l) || !isNumber(r))
+        throw new PropertyException(getName() + " requires numeric operands");
     }
 
     @Override
@@ -271,15 +420,96 @@ public abstract class Expression
                           Object r)
         throws PropertyException
     {
-      if (!isNumber(l) || !isNumber(r))
-        throw new PropertyException("Add requires numeric operands");
+      checkOperands(l, r);
+      int kind = numberKind(l, r);
+      if (kind <= LONG)
+        return numberObject(operate(numberValue(l), numberValue(r)), kind);
+      else if (kind == DOUBLE)
+        return Double.valueOf(operate(doubleValue(l), doubleValue(r)));
+      else
+        return operate(decimalValue(l), decimalValue(r));
+    }
+
+    @Override
+    public long evaluateLong(Context context)
+        throws PropertyException
+    {
+      Object l = evaluateLeft(context), r = evaluateRight(context);
+      checkOperands(l, r);
+      int kind = numberKind(l, r);
+      if (kind <= LONG)
+        return operateIntegral(l, r, kind);
       else
-        return numberObject(numberValue(l) + numberValue(r), l, r);
+        return ((Number) operate(l, r)).longValue();
+    }
+
+    @Override
+    public double evaluateDouble(Context context)
+        throws PropertyException
+    {
+      Object l = evaluateLeft(context), r = evaluateRight(context);
+      checkOperands(l, r);
+      int kind = numberKind(l, r);
+      if (kind == DOUBLE)
+        return operate(doubleValue(l), doubleValue(r));
+      else if (kind == DECIMAL)
+        return operate(decimalValue(l), decimalValue(r)).doubleValue();
+      else
+        return operateIntegral(l, r, kind);
+    }
+
+    // an Integer result is truncated to an int, as numberObject() does
+    private long operateIntegral(Object l,
+                                 Object r,
+                                 int kind)
+        throws PropertyException
+    {
+      long result = operate(numberValue(l), numberValue(r));
+      return (kind == INT) ? (int) result : result;
+    }
+  }
+
+  public static class AddOperation
+    extends ArithmeticOperation
+  {
+
+    public AddOperation(Object l,
+                        Object r)
+    {
+      super(l,
+            r);
+    }
+
+    @Override
+    public String getName()
+    {
+      return "Add";
+    }
+
+    @Override
+    protected long operate(long l,
+                           long r)
+    {
+      return l + r;
+    }
+
+    @Override
+    protected double operate(double l,
+                             double r)
+    {
+      return l + r;
+    }
+
+    @Override
+    protected BigDecimal operate(BigDecimal l,
+                                 BigDecimal r)
+    {
+      return l.add(r);
     }
   }
 
   public static class SubtractOperation
-    extends BinaryOperation
+    extends ArithmeticOperation
   {
 
     public SubtractOperation(Object l,
@@ -296,19 +526,29 @@ public abstract class Expression
     }
 
     @Override
-    public Object operate(Object l,
-                          Object r)
-        throws PropertyException
+    protected long operate(long l,
+                           long r)
     {
-      if (!isNumber(l) || !isNumber(r))
-        throw new PropertyException("Subtract requires numeric operands");
-      else
-        return numberObject(numberValue(l) - numberValue(r), l, r);
+      return l - r;
+    }
+
+    @Override
+    protected double operate(double l,
+                             double r)
+    {
+      return l - r;
+    }
+
+    @Override
+    protected BigDecimal operate(BigDecimal l,
+                                 BigDecimal r)
+    {
+      return l.subtract(r);
     }
   }
 
   public static class MultiplyOperation
-    extends BinaryOperation
+    extends ArithmeticOperation
   {
 
     public MultiplyOperation(Object l,
@@ -325,19 +565,29 @@ public abstract class Expression
     }
 
     @Override
-    public Object operate(Object l,
-                          Object r)
-        throws PropertyException
+    protected long operate(long l,
+                           long r)
     {
-      if (!isNumber(l) || !isNumber(r))
-        throw new PropertyException("Multiply requires numeric operands");
-      else
-        return numberObject(numberValue(l) * numberValue(r), l, r);
+      return l * r;
+    }
+
+    @Override
+    protected double operate(double l,
+                             double r)
+    {
+      return l * r;
+    }
+
+    @Override
+    protected BigDecimal operate(BigDecimal l,
+                                 BigDecimal r)
+    {
+      return l.multiply(r);
     }
   }
 
   public static class DivideOperation
-    extends BinaryOperation
+    extends ArithmeticOperation
   {
 
     public DivideOperation(Object l,
@@ -354,19 +604,33 @@ public abstract class Expression
     }
 
     @Override
-    public Object operate(Object l,
-                          Object r)
+    protected long operate(long l,
+                           long r)
         throws PropertyException
     {
-      if (!isNumber(l) || !isNumber(r))
-        throw new PropertyException("Divide requires numeric operands");
-      else {
-        long denom = numberValue(r);
-        if (denom == 0)
-          throw new PropertyException("Divide by zero");
-        else
-          return numberObject(numberValue(l) / denom, l, r);
-      }
+      if (r == 0)
+        throw new PropertyException("Divide by zero");
+      return l / r;
+    }
+
+    @Override
+    protected double operate(double l,
+                             double r)
+        throws PropertyException
+    {
+      if (r == 0)
+        throw new PropertyException("Divide by zero");
+      return l / r;
+    }
+
+    @Override
+    protected BigDecimal operate(BigDecimal l,
+                                 BigDecimal r)
+        throws PropertyException
+    {
+      if (r.signum() == 0)
+        throw new PropertyException("Divide by zero");
+      return l.divide(r, MathContext.DECIMAL128);
     }
   }
 
@@ -398,6 +662,24 @@ public abstract class Expression
       return null;
     }
 
+    /**
+     * Compare two numbers that are not both integers: each is turned into a double, or into a
+     * BigDecimal if either needs it, and the comparison is made on the sign of their difference.
+     */
+    private Boolean compareNumbers(Object l,
+                                   Object r,
+                                   int kind)
+    {
+      int sign;
+      if (kind == DOUBLE) {
+        double dl = doubleValue(l), dr = doubleValue(r);
+        sign = (dl < dr) ? -1 : (dl == dr) ? 0 : 1;
+      } else {
+        sign = decimalValue(l).compareTo(decimalValue(r));
+      }
+      return compare(sign, 0L);
+    }
+
     @Override
     public Object operate(Object l,
                           Object r)
@@ -406,17 +688,21 @@ public abstract class Expression
       Boolean b = null;
       boolean lIsNumber = isNumber(l), rIsNumber = isNumber(r);
 
-      if (lIsNumber && rIsNumber)
-        b = compare(numberValue(l), numberValue(r));
-      else {
+      if (lIsNumber && rIsNumber) {
+        int kind = numberKind(l, r);
+        if (kind <= LONG)
+          b = compare(numberValue(l), numberValue(r));
+        else
+          b = compareNumbers(l, r, kind);
+      } else {
         boolean lIsString = (l instanceof String), rIsString = (r instanceof String);
 
         if (lIsString && rIsString)
           b = compare((String) l, (String) r);
         else if (lIsString && rIsNumber)
-          b = compare((String) l, Long.toString(numberValue(r)));
+          b = compare((String) l, numberString(r));
         else if (lIsNumber && rIsString)
-          b = compare(Long.toString(numberValue(l)), (String) r);
+          b = compare(numberString(l), (String) r);
         else if (l == null)
           b = compareNull(r);
         else if (r == null)
@@ -430,6 +716,13 @@ public abstract class Expression
       else
         return b;
     }
+
+    @Override
+    public boolean evaluateBoolean(Context context)
+        throws PropertyException
+    {
+      return ((Boolean) operate(evaluateLeft(context), evaluateRight(context))).booleanValue();
+    }
   }
 
   public static class CompareEq
@@ -667,6 +960,24 @@ public abstract class Expression
                                  Object r)
         throws BuildException;
 
+    /**
+     * Return the operation, or if neither operand is a Macro, its value: a constant expression is
+     * worked out once, here, rather than on every evaluation.
+     */
+    protected Object fold(BinaryOperation op,
+                          Object l,
+                          Object r)
+        throws BuildException
+    {
+      if ((l instanceof Macro) || (r instanceof Macro))
+        return op;
+      try {
+        return op.operate(l, r);
+      } catch (PropertyException e) {
+        throw new BuildException(e.getMessage());
+      }
+    }
+
     @Override
     public Object build(BuildContext pc)
         throws BuildException
@@ -797,13 +1108,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      if (!(l instanceof Macro) && !(r instanceof Macro)) {
-        if (isNumber(l) && isNumber(r))
-          return numberObject(numberValue(l) + numberValue(r), l, r);
-        else
-          throw new BuildException("Add requires numeric operands");
-      } else
-        return new AddOperation(l, r);
+      return fold(new AddOperation(l, r), l, r);
     }
   }
 
@@ -823,13 +1128,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      if (!(l instanceof Macro) && !(r instanceof Macro)) {
-        if (isNumber(l) && isNumber(r))
-          return numberObject(numberValue(l) - numberValue(r), l, r);
-        else
-          throw new BuildException("Subtract requires numeric operands");
-      } else
-        return new SubtractOperation(l, r);
+      return fold(new SubtractOperation(l, r), l, r);
     }
   }
 
@@ -849,13 +1148,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      if (!(l instanceof Macro) && !(r instanceof Macro)) {
-        if (isNumber(l) && isNumber(r))
-          return numberObject(numberValue(l) * numberValue(r), l, r);
-        else
-          throw new BuildException("Multiply requires numeric operands");
-      } else
-        return new MultiplyOperation(l, r);
+      return fold(new MultiplyOperation(l, r), l, r);
     }
   }
 
@@ -875,17 +1168,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      if (!(l instanceof Macro) && !(r instanceof Macro)) {
-        if (isNumber(l) && isNumber(r)) {
-          long denom = numberValue(r);
-          if (denom == 0)
-            throw new BuildException("Divide by zero");
-          else
-            return numberObject(numberValue(l) / denom, l, r);
-        } else
-          throw new BuildException("Divide requires numeric operands");
-      } else
-        return new DivideOperation(l, r);
+      return fold(new DivideOperation(l, r), l, r);
     }
   }
 
@@ -905,16 +1188,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      CompareEq c = new CompareEq(l, r);
-
-      if ((l instanceof Macro) || (r instanceof Macro))
-        return c;
-      else
-        try {
-          return c.operate(l, r);
-        } catch (PropertyException e) {
-          throw new BuildException(e.toString());
-        }
+      return fold(new CompareEq(l, r), l, r);
     }
   }
 
@@ -934,16 +1208,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      CompareNe c = new CompareNe(l, r);
-
-      if ((l instanceof Macro) || (r instanceof Macro))
-        return c;
-      else
-        try {
-          return c.operate(l, r);
-        } catch (PropertyException e) {
-          throw new BuildException(e.toString());
-        }
+      return fold(new CompareNe(l, r), l, r);
     }
   }
 
@@ -963,16 +1228,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      CompareLe c = new CompareLe(l, r);
-
-      if ((l instanceof Macro) || (r instanceof Macro))
-        return c;
-      else
-        try {
-          return c.operate(l, r);
-        } catch (PropertyException e) {
-          throw new BuildException(e.toString());
-        }
+      return fold(new CompareLe(l, r), l, r);
     }
   }
 
@@ -992,16 +1248,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      CompareLt c = new CompareLt(l, r);
-
-      if ((l instanceof Macro) || (r instanceof Macro))
-        return c;
-      else
-        try {
-          return c.operate(l, r);
-        } catch (PropertyException e) {
-          throw new BuildException(e.toString());
-        }
+      return fold(new CompareLt(l, r), l, r);
     }
   }
 
@@ -1021,16 +1268,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      CompareGe c = new CompareGe(l, r);
-
-      if ((l instanceof Macro) || (r instanceof Macro))
-        return c;
-      else
-        try {
-          return c.operate(l, r);
-        } catch (PropertyException e) {
-          throw new BuildException(e.toString());
-        }
+      return fold(new CompareGe(l, r), l, r);
     }
   }
 
@@ -1050,16 +1288,7 @@ public abstract class Expression
                         Object r)
         throws BuildException
     {
-      CompareGt c = new CompareGt(l, r);
-
-      if ((l instanceof Macro) || (r instanceof Macro))
-        return c;
-      else
-        try {
-          return c.operate(l, r);
-        } catch (PropertyException e) {
-          throw new BuildException(e.toString());
-        }
+      return fold(new CompareGt(l, r), l, r);
     }
   }
 }
@@ -53,6 +53,41 @@ public final class IntrospectionUtils
     return true;
   }
 
+  /**
+   * Like matches(sig, createTypesFromArgs(args)), but without building the array of types, so it
+   * can be used on every call without allocating.
+   */
+  static boolean matchesArguments(Class<?>[] sig,
+                                  Object[] args)
+  {
+    if (args.length != sig.length)
+      return false;
+
+    for (int i = 0; i < sig.length; i++) {
+      Class<?> s = sig[i];
+      Object arg = args[i];
+      if (s.isPrimitive()) {
+        // nulls can never be passed as primitives
+        if (arg == null)
+          return false;
+        Class<?> a = arg.getClass();
+        if ((s == Integer.TYPE && a == Integer.class)
+            || (s == Boolean.TYPE && a == Boolean.class)
+            || (s == Character.TYPE && a == Character.class)
+            || (s == Long.TYPE && a == Long.class) || (s == Short.TYPE && a == Short.class)
+            || (s == Double.TYPE && a == Double.class) || (s == Float.TYPE && a == Float.class)
+            || (s == Void.TYPE && a == Void.class) || (s == Byte.TYPE && a == Byte.class))
+          continue;
+        else
+          return false;
+      } else if (arg == null || s.isInstance(arg))
+        continue;
+      else
+        return false;
+    }
+    return true;
+  }
+
   static public Class<?>[] createTypesFromArgs(Object[] args)
   {
     Class<?>[] types = new Class[args.length];
@@ -72,7 +72,8 @@ public class MacroBuildContext
   }
 
   @Override
-  protected Object internalGet(Object name)
+  protected Object internalGet(Object name,
+                               PropertyCallSite site)
       throws PropertyException
   {
     if (macroArgs.containsKey(name))
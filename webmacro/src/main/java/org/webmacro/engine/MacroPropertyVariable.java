@@ -28,6 +28,11 @@ public class MacroPropertyVariable
 
   private Macro value;
 
+  /**
+   * Remembers how the names were resolved last time.
+   */
+  private final PropertyCallSite _site;
+
   /**
    * No special initialization
    */
@@ -35,6 +40,7 @@ public class MacroPropertyVariable
                         Object names[])
   {
     super(names);
+    _site = new PropertyCallSite(names.length);
     this.value = value;
   }
 
@@ -52,7 +58,7 @@ public class MacroPropertyVariable
     if (v == null)
       throw new PropertyException.NullValueException(_names[0].toString());
     else
-      return context.getBroker().__propertyOperators.getProperty(context, v, _names, 1);
+      return context.getBroker().__propertyOperators.getProperty(context, v, _names, 1, _site);
   }
 
   /**
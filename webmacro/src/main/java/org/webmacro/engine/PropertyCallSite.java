@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.engine;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.webmacro.Context;
+import org.webmacro.PropertyException;
+import org.webmacro.util.PropertyMethod;
+
+/**
+ * An inline cache for one property reference in a template, such as <code>$item.Price</code>. For
+ * each name in the reference it remembers the classes it has been applied to and the accessor the
+ * PropertyOperator chose for each, so evaluating the reference again on objects of the same classes
+ * costs a class identity check per name rather than a PropertyOperator lookup and a few hash
+ * lookups.
+ * <p>
+ * Each name starts out monomorphic, remembering one class; it can grow to remember up to
+ * MAX_CLASSES classes, after which it is considered megamorphic and always goes through the
+ * PropertyOperatorCache. The cache is safe to share between threads: entries are immutable, and a
+ * lost update only costs a later miss.
+ * <p>
+ * A call site also remembers when the Context did not have its first name and the Broker had no
+ * auto context variable (tool) of that name either, so that evaluating an undefined variable again
+ * does not ask the Broker each time. This holds until another auto context variable is registered.
+ */
+public final class PropertyCallSite
+{
+
+  static final int UNARY = 0;
+  static final int BINARY = 1;
+  static final int HASH = 2;
+  static final int DIRECT = 3;
+
+  /**
+   * Number of receiver classes remembered for one name before giving up on it.
+   */
+  private static final int MAX_CLASSES = 4;
+
+  private static final Step[] MEGAMORPHIC = new Step[0];
+
+  /**
+   * What the PropertyOperator did for one name on one class.
+   */
+  static final class Step
+  {
+
+    final Class<?> type;
+    final Accessor accessor;
+    final int kind;
+
+    Step(Class<?> type,
+         Accessor accessor,
+         int kind)
+    {
+      this.type = type;
+      this.accessor = accessor;
+      this.kind = kind;
+    }
+
+    /**
+     * The number of names this step uses up.
+     */
+    int consumed()
+    {
+      return (kind == BINARY) ? 2 : 1;
+    }
+
+    Object get(Context context,
+               Object instance,
+               Object[] names,
+               int pos)
+        throws PropertyException, NoSuchMethodException
+    {
+      switch (kind) {
+        case UNARY:
+          return accessor.get(instance);
+        case BINARY:
+          return accessor.get(instance, (String) names[pos + 1]);
+        case DIRECT:
+          return accessor.get(instance, ((PropertyMethod) names[pos]).getArguments(context));
+        default:
+          return accessor.get(instance, names[pos].toString());
+      }
+    }
+  }
+
+  private final AtomicReferenceArray<Step[]> _steps;
+
+  // Broker.getAutoContextStamp() when the first name was found to have no
+  // auto context variable
+  private volatile Object _noAutoVariable = null;
+
+  PropertyCallSite(int length)
+  {
+    _steps = new AtomicReferenceArray<Step[]>(length);
+  }
+
+  /**
+   * True if the first name was found to have no auto context variable, and none has been
+   * registered with the Broker since.
+   */
+  public boolean hasNoAutoVariable(Object autoContextStamp)
+  {
+    return _noAutoVariable == autoContextStamp;
+  }
+
+  /**
+   * Record that the first name had no auto context variable as of the given
+   * Broker.getAutoContextStamp().
+   */
+  public void setNoAutoVariable(Object autoContextStamp)
+  {
+    _noAutoVariable = autoContextStamp;
+  }
+
+  /**
+   * Return what was done for names[pos] on an instance of type, or null if we don't know.
+   */
+  Step lookup(int pos,
+              Class<?> type)
+  {
+    Step[] steps = _steps.get(pos);
+    if (steps != null) {
+      for (int i = 0; i < steps.length; i++) {
+        if (steps[i].type == type)
+          return steps[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Record that names[pos] was resolved on an instance of type with the supplied accessor.
+   */
+  void remember(int pos,
+                Class<?> type,
+                Accessor accessor,
+                int kind)
+  {
+    Step[] steps = _steps.get(pos);
+    if (steps == MEGAMORPHIC || lookup(pos, type) != null) {
+      return;
+    } else if (steps == null) {
+      steps = new Step[] { new Step(type, accessor, kind) };
+    } else if (steps.length >= MAX_CLASSES) {
+      steps = MEGAMORPHIC;
+    } else {
+      Step[] grown = new Step[steps.length + 1];
+      System.arraycopy(steps, 0, grown, 0, steps.length);
+      grown[steps.length] = new Step(type, accessor, kind);
+      steps = grown;
+    }
+    _steps.set(pos, steps);
+  }
+}
@@ -11,8 +11,10 @@
 
 package org.webmacro.engine;
 
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -157,6 +159,49 @@ final public class PropertyOperatorCache
     }
   }
 
+  /**
+   * Like getProperty(context, instance, names, start), but first tries what the site remembers
+   * about the classes met along the way, and only falls back to the property operators for names
+   * it has not seen applied to those classes before.
+   * 
+   * @param site
+   *          the inline cache of the template node being evaluated, or null
+   */
+  final public Object getProperty(final Context context,
+                                  final Object instance,
+                                  final Object[] names,
+                                  int start,
+                                  PropertyCallSite site)
+      throws PropertyException
+  {
+    if (site == null)
+      return getProperty(context, instance, names, start);
+
+    Object value = instance;
+    int pos = start;
+    while (pos < names.length) {
+      if (value == null) {
+        if (pos == start)
+          return null;
+        // $Foo.getNull().SomeProperty, as reported by PropertyOperator
+        throw new PropertyException("$" + PropertyOperator.fillInName(names, pos)
+                                    + " is null.  Cannot access ." + names[names.length - 1]);
+      }
+      PropertyCallSite.Step step = site.lookup(pos, value.getClass());
+      if (step != null) {
+        try {
+          value = step.get(context, value, names, pos);
+          pos += step.consumed();
+          continue;
+        } catch (NoSuchMethodException e) {
+          // resolve it the long way below
+        }
+      }
+      return getOperator(value).getProperty(context, value, names, pos, names.length - 1, site);
+    }
+    return value;
+  }
+
   /**
    * Calls getProperty(context, instance, names, 0).
    */
@@ -623,10 +668,26 @@ final class PropertyOperator
                             int start,
                             int end)
       throws PropertyException
+  {
+    return getProperty(context, instance, names, start, end, null);
+  }
+
+  /**
+   * As above, recording each accessor that is used in site, if there is one.
+   */
+  Object getProperty(final Context context,
+                     final Object instance,
+                     final Object[] names,
+                     int start,
+                     int end,
+                     PropertyCallSite site)
+      throws PropertyException
   {
     String propName;
     Object nextPropValue = null;
     Accessor acc = null;
+    final int pos = start;
+    int kind = PropertyCallSite.DIRECT;
 
     if (names[start] instanceof String) {
       propName = (String) names[start];
@@ -659,6 +720,7 @@ final class PropertyOperator
 
     // unary?
     if (acc == null) {
+      kind = PropertyCallSite.UNARY;
       acc = _unaryAccessors.get(propName);
       if (acc != null) {
         try {
@@ -672,6 +734,7 @@ final class PropertyOperator
 
     // binary?
     if (acc == null) {
+      kind = PropertyCallSite.BINARY;
       acc = _binaryAccessors.get(propName);
       // if ((acc != null) && ((start + 1) <= end))
       if ((acc != null) && ((start + 1) <= names.length)) {
@@ -693,6 +756,7 @@ final class PropertyOperator
 
     // hash?
     if (acc == null) {
+      kind = PropertyCallSite.HASH;
       acc = _hashAccessor;
       try {
         if (acc != null) {
@@ -719,13 +783,19 @@ final class PropertyOperator
                                                           instance.getClass().getName());
     }
 
+    // a StaticClassWrapper's operator is for the wrapped class, which its own class doesn't tell us
+    if (site != null && !(instance instanceof StaticClassWrapper<?>)) {
+      site.remember(pos, instance.getClass(), acc, kind);
+    }
+
     if (start <= end) {
       try {
         return _cache.getOperator(nextPropValue).getProperty(context,
                                                              nextPropValue,
                                                              names,
                                                              start,
-                                                             end);
+                                                             end,
+                                                             site);
       } catch (NullPointerException e) {
         // $Foo.getNull().SomeProperty is what makes this happen
         throw new PropertyException("$" + fillInName(names, start) + " is null.  Cannot access ."
@@ -740,7 +810,7 @@ final class PropertyOperator
    * given an object[] of names, append them together up to index <code>end</code> in the form of
    * <code>Name1.Name2.Name3.NameN</code>
    */
-  private static final String fillInName(Object[] names,
+  static final String fillInName(Object[] names,
                                          int end)
   {
     StringBuilder sb = new StringBuilder();
@@ -864,6 +934,25 @@ final class PropertyOperator
                                 + " is not a list");
   }
 
+  /**
+   * Switch off the per-call access check for a public member of a public class. Introspection only
+   * ever hands out such members, so this grants nothing that reflection would not allow anyway; it
+   * just saves the check on every invocation. Members we may not touch are left alone and go
+   * through the normal checks.
+   */
+  static void makeAccessible(AccessibleObject o,
+                             Member m)
+  {
+    if (Modifier.isPublic(m.getModifiers())
+        && Modifier.isPublic(m.getDeclaringClass().getModifiers())) {
+      try {
+        o.setAccessible(true);
+      } catch (RuntimeException e) {
+        // a security manager or module boundary said no; keep checking
+      }
+    }
+  }
+
   /**
    * Invoke a method on an instance, with arguments--generate PropertyException rather than the
    * default Java exceptions.
@@ -922,83 +1011,6 @@ final class PropertyOperator
 
 // helper classes
 
-/**
- * An accessor represents one particular operation that can be performed on one particular class:
- * getting/setting a field, or getting/setting via a method.
- */
-abstract class Accessor
-{
-
-  private String _name;
-
-  Accessor(String name)
-  {
-    _name = name;
-  }
-
-  final String getName()
-  {
-    return _name;
-  }
-
-  @Override
-  public final String toString()
-  {
-    return "Accessor:" + _name;
-  }
-
-  /**
-   * Unary get
-   */
-  Object get(Object instance)
-      throws PropertyException, NoSuchMethodException
-  {
-    throw new PropertyException("BUG in PropertyOperator.java!");
-  }
-
-  /**
-   * Unary set
-   */
-  boolean set(Object instance,
-              Object value)
-      throws PropertyException, NoSuchMethodException
-  {
-    throw new PropertyException("BUG in PropertyOperator.java!");
-  }
-
-  /**
-   * Binary get.
-   */
-  Object get(Object instance,
-             String subName)
-      throws PropertyException, NoSuchMethodException
-  {
-    throw new PropertyException("BUG in PropertyOperator.java!");
-  }
-
-  /**
-   * Binary.
-   */
-  boolean set(Object instance,
-              String subName,
-              Object value)
-      throws PropertyException, NoSuchMethodException
-  {
-    throw new PropertyException("BUG in PropertyOperator.java!");
-  }
-
-  /**
-   * Direct get
-   */
-  Object get(Object instance,
-             Object[] args)
-      throws PropertyException, NoSuchMethodException
-  {
-    throw new PropertyException("BUG in PropertyOperator.java!");
-  }
-
-}
-
 /**
  * An accessor that knows how to get/set from a field
  */
@@ -1012,6 +1024,7 @@ final class FieldAccessor
   {
     super(f.getName());
     _field = f;
+    PropertyOperator.makeAccessible(f, f);
   }
 
   @Override
@@ -1083,6 +1096,11 @@ final class DirectAccessor
 
   List<Method> _methods = new ArrayList<Method>();
 
+  /**
+   * Parameter types of each of _methods; Method.getParameterTypes() copies them on every call.
+   */
+  List<Class<?>[]> _signatures = new ArrayList<Class<?>[]>();
+
   DirectAccessor(final String name,
                  final Method m,
                  final Class<?>[] params)
@@ -1094,7 +1112,9 @@ final class DirectAccessor
   final void addMethod(final Method m,
                        Class<?>[] params)
   {
+    PropertyOperator.makeAccessible(m, m);
     _methods.add(m);
+    _signatures.add(params);
   }
 
   @Override
@@ -1102,20 +1122,9 @@ final class DirectAccessor
                    Object[] args)
       throws PropertyException, NoSuchMethodException
   {
-    Class<?>[] types = new Class[args.length];
-    for (int i = 0; i < args.length; i++) {
-      try {
-        types[i] = args[i].getClass();
-      } catch (NullPointerException e) {
-        types[i] = null;
-      }
-    }
-
     for (int i = 0; i < _methods.size(); i++) {
-      Method m = _methods.get(i);
-      Class<?>[] sig = m.getParameterTypes();
-      if (IntrospectionUtils.matches(sig, types)) {
-        return PropertyOperator.invoke(m, instance, args);
+      if (IntrospectionUtils.matchesArguments(_signatures.get(i), args)) {
+        return PropertyOperator.invoke(_methods.get(i), instance, args);
       }
     }
 
@@ -1142,6 +1151,7 @@ abstract class MethodAccessor
 {
 
   protected Method _getMethod; // only one get method allowed
+  protected boolean _getIsMapGet; // _getMethod is Map.get(Object), so call it directly
   private Method[] _setMethods = null; // may be multiple set methods
   private Class<?>[] _setParams = null; // variable arg type for set meth N
   private Class<?>[] _setPrimitiveType = null;
@@ -1191,8 +1201,12 @@ abstract class MethodAccessor
     final int setArgsLength = numArgsSet();
     final int getArgsLength = numArgsGet();
 
+    PropertyOperator.makeAccessible(m, m);
     if (params.length == getArgsLength) {
       _getMethod = m;
+      _getIsMapGet =
+          (getArgsLength == 1 && params[0] == Object.class && m.getName().equals("get")
+              && Map.class.isAssignableFrom(m.getDeclaringClass()));
     } else if (params.length == setArgsLength) {
       setCount++;
       if (_setMethods == null) {
@@ -1323,6 +1337,17 @@ final class BinaryMethodAccessor
                    String prop)
       throws PropertyException, NoSuchMethodException
   {
+    if (_getIsMapGet) {
+      // the common $map.key case: a plain interface call, which is what reflection would end up
+      // dispatching to anyway
+      try {
+        return ((Map<?, ?>) instance).get(prop);
+      } catch (RuntimeException e) {
+        throw new PropertyException("Attempt to invoke method " + _getMethod + " on object "
+                                    + instance.getClass().getName() + " raised an exception: "
+                                    + e.getClass().getName(), e);
+      }
+    }
     Object[] args = { prop };
     return PropertyOperator.invoke(_getMethod, instance, args);
   }
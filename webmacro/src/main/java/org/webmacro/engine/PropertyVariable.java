@@ -21,12 +21,18 @@ final class PropertyVariable
   extends Variable
 {
 
+  /**
+   * Remembers how the names were resolved last time.
+   */
+  private final PropertyCallSite _site;
+
   /**
    * No special initialization
    */
   PropertyVariable(Object names[])
   {
     super(names);
+    _site = new PropertyCallSite(names.length);
   }
 
   /**
@@ -39,7 +45,7 @@ final class PropertyVariable
   public final Object getValue(Context context)
       throws PropertyException
   {
-    return context.getProperty(_names);
+    return context.getProperty(_names, _site);
   }
 
   /**
@@ -21,12 +21,12 @@ final class SimplePropertyVariable
   extends Variable
 {
 
-  /**
-   * No special initialization
-   */
+  private final PropertyCallSite _site;
+
   SimplePropertyVariable(Object names[])
   {
     super(names);
+    _site = new PropertyCallSite(1);
   }
 
   /**
@@ -39,7 +39,7 @@ final class SimplePropertyVariable
   public final Object getValue(Context context)
       throws PropertyException
   {
-    return context.getProperty(_names[0]);
+    return context.getProperty(_names[0], _site);
   }
 
   /**
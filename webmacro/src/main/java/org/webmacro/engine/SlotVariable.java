@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.engine;
+
+import org.webmacro.Context;
+import org.webmacro.PropertyException;
+import org.webmacro.util.SlotMap;
+
+/**
+ * A simple variable whose name a template assigns to, such as a #set or #foreach target. Its value
+ * is kept in a slot of the Context, found by number rather than by name. The number is only good
+ * for Contexts of the broker that built the template; others look the name up as usual.
+ */
+final class SlotVariable
+  extends Variable
+{
+
+  private final SlotMap.Registry _registry;
+  private final int _slot;
+
+  SlotVariable(Object names[],
+               SlotMap.Registry registry,
+               int slot)
+  {
+    super(names);
+    _registry = registry;
+    _slot = slot;
+  }
+
+  @Override
+  public final Object getValue(Context context)
+      throws PropertyException
+  {
+    return context.getProperty(_names[0], _registry, _slot);
+  }
+
+  @Override
+  public final void setValue(Context context,
+                             Object newValue)
+      throws PropertyException
+  {
+    if (!context.setProperty(_names[0], _registry, _slot, newValue)) {
+      throw new PropertyException("No method to set \"" + getVariableName() + "\" to type "
+                                  + ((newValue == null) ? "null" : newValue.getClass().toString())
+                                  + " in supplied context (" + context.getClass() + ")");
+    }
+  }
+
+  @Override
+  public final String toString()
+  {
+    return "property:" + getVariableName();
+  }
+
+}
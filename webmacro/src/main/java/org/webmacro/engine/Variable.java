@@ -154,10 +154,10 @@ public abstract class Variable
         PropertyException.UndefinedVariableException uve =
             (PropertyException.UndefinedVariableException) e;
         if (_names.length > 1)
-          uve.setMessage("Attempted to reference a property or method of an undefined variable: $"
-                         + _names[0]);
+          uve.setMessage("Attempted to reference a property or method of an undefined variable: $",
+                         _names[0]);
         else
-          uve.setMessage("Attempted to evaluate an undefined variable: $" + _names[0]);
+          uve.setMessage("Attempted to evaluate an undefined variable: $", _names[0]);
       }
       context.getEvaluationExceptionHandler().evaluate(this, context, e);
       return null;
@@ -223,10 +223,10 @@ public abstract class Variable
         PropertyException.UndefinedVariableException uve =
             (PropertyException.UndefinedVariableException) e;
         if (_names.length > 1)
-          uve.setMessage("Attempted to write a property or method value of an undefined variable: $"
-                         + _names[0]);
+          uve.setMessage("Attempted to write a property or method value of an undefined variable: $",
+                         _names[0]);
         else
-          uve.setMessage("Attempted to write an undefined variable: $" + _names[0]);
+          uve.setMessage("Attempted to write an undefined variable: $", _names[0]);
       }
       out.write(context.getEvaluationExceptionHandler().expand(this, context, e));
     } catch (Exception e) {
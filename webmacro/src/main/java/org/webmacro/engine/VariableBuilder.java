@@ -29,4 +29,16 @@ public class VariableBuilder
   {
     return bc.resolveVariableReference(_names);
   }
+
+  /**
+   * Build the variable as the target of a directive that assigns to it, such as #set or #foreach.
+   * A simple name is declared a local of the template first.
+   */
+  public final Object buildTarget(BuildContext bc)
+      throws BuildException
+  {
+    if (_names.length == 1 && _names[0] instanceof String)
+      bc.declareLocal((String) _names[0]);
+    return build(bc);
+  }
 }
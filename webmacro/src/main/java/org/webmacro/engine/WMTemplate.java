@@ -14,8 +14,10 @@ package org.webmacro.engine;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,10 +43,9 @@ import org.webmacro.WMConstants;
  * be parsed once (somewhat expensive) and then used many times; and also not to incur any parsing
  * costs at all if the Template is never actually used.
  * <p>
- * CONCURRENCY: You must parse() the template before making it available to other threads. After a
- * template has been parsed it is immutable and can be shared between threads without
- * synchronization. This class performs no synchronization itself but instead relies on the
- * TemplateProvider/Broker to synchronize access.
+ * CONCURRENCY: A template may be shared between threads before it has been parsed. The first
+ * thread to need it parses it while any others wait; the result is published as one immutable
+ * record, so once parsed a template is rendered without any locking.
  */
 abstract public class WMTemplate
   implements Template
@@ -57,29 +58,48 @@ abstract public class WMTemplate
   final protected Broker __broker;
 
   /**
-   * Whether template has already been parsed.
+   * Everything parse() produces, published together once parsing is over.
    */
-  private boolean _parsed;
+  private static final class Parsed
+  {
+
+    final Block content;
+    final Map<Object, Object> parameters;
+    final Map<String, MacroDefinition> macros;
+    final Set<String> dependencies;
+
+    Parsed(Block content,
+           Map<Object, Object> parameters,
+           Map<String, MacroDefinition> macros,
+           Set<String> dependencies)
+    {
+      this.content = content;
+      this.parameters = parameters;
+      this.macros = macros;
+      this.dependencies = dependencies;
+    }
+  }
 
   /**
-   * What this template contains is a top level block.
+   * Null until the template has been parsed.
    */
-  protected Block _content;
+  private volatile Parsed _parsed;
 
   /**
-   * Which parser (grammar) is used to parse this template, typically "wm".
+   * Held while parsing, so that only one thread does it.
    */
-  private String _parserName;
+  private final Object _parseLock = new Object();
 
   /**
-   * Template parameters.
+   * What this template contains is a top level block. Set before the parsed state is published, so
+   * it is safe to read once parse() has returned.
    */
-  private Map<Object, Object> _parameters;
+  protected Block _content;
 
   /**
-   * Template Macros.
+   * Which parser (grammar) is used to parse this template, typically "wm".
    */
-  private Map<String, MacroDefinition> _macros;
+  private String _parserName;
 
   /**
    * Create a new Template. Constructors must supply a broker.
@@ -156,55 +176,77 @@ abstract public class WMTemplate
   public void parse()
       throws IOException, TemplateException
   {
-    if (!_parsed) {
-      Block newContent = null;
-      Map<Object, Object> newParameters = null;
-      Map<String, MacroDefinition> newMacros = null;
-      Reader in = null;
-      BuildContext bc = null;
-      try {
-        Parser parser = getParser();
-        in = getReader();
-        BlockBuilder bb = parser.parseBlock(getName(), in);
-        in.close();
-        bc = new BuildContext(__broker);
-        // put global macros from Broker into the BuildContext
-        Map<String, MacroDefinition> globalMacros = __broker.getMacros();
-        for (Iterator<Map.Entry<String, MacroDefinition>> i = globalMacros.entrySet().iterator(); i.hasNext();) {
-          Map.Entry<String, MacroDefinition> entry = i.next();
-          bc.putMacro(entry.getKey(), entry.getValue());
+    if (_parsed == null) {
+      synchronized (_parseLock) {
+        if (_parsed == null) {
+          doParse();
+          return;
         }
-        newParameters = bc.getMap();
-        newMacros = bc.getMacros();
-        newContent = (Block) bb.build(bc);
-      } catch (BuildException be) {
-        if (bc != null)
-          be.setContextLocation(bc.getCurrentLocation());
-        _log.error("Template contained invalid data", be);
-        throw be;
+      }
+    }
+    _log.debug("Ignoring parse request on already parsed template " + this);
+  }
+
+  /**
+   * Subclasses can override this to add parameters to a freshly parsed template, before it is made
+   * available to other threads.
+   */
+  protected void initParameters(Map<Object, Object> parameters)
+  {
+  }
+
+  /**
+   * Parse the template and publish the result. Must hold _parseLock.
+   */
+  private void doParse()
+      throws IOException, TemplateException
+  {
+    Block newContent = null;
+    Map<Object, Object> newParameters = null;
+    Map<String, MacroDefinition> newMacros = null;
+    Set<String> newDependencies = Collections.emptySet();
+    Reader in = null;
+    BuildContext bc = null;
+    try {
+      Parser parser = getParser();
+      in = getReader();
+      BlockBuilder bb = parser.parseBlock(getName(), in);
+      in.close();
+      bc = new BuildContext(__broker);
+      // put global macros from Broker into the BuildContext
+      Map<String, MacroDefinition> globalMacros = __broker.getMacros();
+      for (Iterator<Map.Entry<String, MacroDefinition>> i = globalMacros.entrySet().iterator(); i.hasNext();) {
+        Map.Entry<String, MacroDefinition> entry = i.next();
+        bc.putMacro(entry.getKey(), entry.getValue());
+      }
+      newParameters = bc.getMap();
+      newMacros = bc.getMacros();
+      newContent = (Block) bb.build(bc);
+      newDependencies = Collections.unmodifiableSet(bc.getDependencies());
+      initParameters(newParameters);
+    } catch (BuildException be) {
+      if (bc != null)
+        be.setContextLocation(bc.getCurrentLocation());
+      _log.error("Template contained invalid data", be);
+      throw be;
+    } catch (IOException e) {
+      _log.error("Template: Could not read template: " + this);
+      throw e;
+    } catch (Exception e) {
+      _log.error("Error parsing template: " + this, e);
+      BuildException be = new BuildException("Error parsing template: " + this, e);
+      if (bc != null)
+        be.setContextLocation(bc.getCurrentLocation());
+      throw be;
+    } finally {
+      try {
+        if (in != null)
+          in.close();
       } catch (IOException e) {
-        _log.error("Template: Could not read template: " + this);
-        throw e;
-      } catch (Exception e) {
-        _log.error("Error parsing template: " + this, e);
-        BuildException be = new BuildException("Error parsing template: " + this, e);
-        if (bc != null)
-          be.setContextLocation(bc.getCurrentLocation());
-        throw be;
-      } finally {
-        try {
-          if (in != null)
-            in.close();
-        } catch (IOException e) {
-          e = null; // Real error reported above
-        }
-        _parameters = newParameters;
-        _content = newContent;
-        _macros = newMacros;
-        _parsed = true;
+        e = null; // Real error reported above
       }
-    } else {
-      _log.debug("Ignoring parse request on already parsed template " + this);
+      _content = newContent;
+      _parsed = new Parsed(newContent, newParameters, newMacros, newDependencies);
     }
   }
 
@@ -217,7 +259,20 @@ abstract public class WMTemplate
   @Override
   public Map<String, MacroDefinition> getMacros()
   {
-    return _macros;
+    Parsed parsed = _parsed;
+    return (parsed == null) ? null : parsed.macros;
+  }
+
+  /**
+   * Get the resources this template copied something from when it was built, such as templates
+   * included as macro, as keys made by TemplateDependencies.key().
+   * 
+   * @return the keys, or null if this template has not yet been <code>parse()'d</code>.
+   */
+  public Set<String> getDependencies()
+  {
+    Parsed parsed = _parsed;
+    return (parsed == null) ? null : parsed.dependencies;
   }
 
   /**
@@ -230,10 +285,10 @@ abstract public class WMTemplate
       throws PropertyException
   {
     try {
-      FastWriter fw = FastWriter.getInstance(__broker);
+      FastWriter fw = FastWriter.getCaptureInstance(context);
       write(fw, context);
       String ret = fw.toString();
-      fw.close();
+      fw.release();
       return ret;
     } catch (IOException e) {
       _log.error("Template: Could not write to ByteArrayOutputStream!", e);
@@ -291,18 +346,22 @@ abstract public class WMTemplate
                           Context context)
       throws IOException, PropertyException
   {
-    try {
-      if (!_parsed) {
+    Parsed parsed = _parsed;
+    if (parsed == null) {
+      try {
         parse();
+      } catch (TemplateException e) {
+        _log.error("Template: Unable to parse template: " + this, e);
+        out.write(context.getEvaluationExceptionHandler()
+                         .errorString("Template failed to parse. Reason: \n" + e.toString(), e));
       }
-    } catch (TemplateException e) {
-      _log.error("Template: Unable to parse template: " + this, e);
-      out.write(context.getEvaluationExceptionHandler()
-                       .errorString("Template failed to parse. Reason: \n" + e.toString(), e));
+      parsed = _parsed;
     }
 
+    Context.TemplateEvaluationContext tec = context.getTemplateEvaluationContext();
+    tec.beginRender();
     try {
-      _content.write(out, context);
+      parsed.content.write(out, context);
     } catch (PropertyException e) {
       e.setContextLocation(context.getCurrentLocation());
       throw e;
@@ -316,13 +375,15 @@ abstract public class WMTemplate
                        .warningString("Could not interpret template. Reason: \n" + warning + "\n"
                                           + e.toString(),
                                       e));
+    } finally {
+      tec.endRender();
     }
   }
 
   @Override
   public void accept(TemplateVisitor v)
   {
-    _content.accept(v);
+    _parsed.content.accept(v);
   }
 
   /**
@@ -347,25 +408,23 @@ abstract public class WMTemplate
   public Object getParam(String key)
       throws IOException, TemplateException
   {
-    try {
-      return _parameters.get(key);
-    } catch (NullPointerException e) {
+    if (_parsed == null)
       parse();
-      return _parameters.get(key);
-    }
+    return _parsed.parameters.get(key);
   }
 
   @Override
   public Map<Object, Object> getParameters()
   {
-    return _parameters;
+    Parsed parsed = _parsed;
+    return (parsed == null) ? null : parsed.parameters;
   }
 
   @Override
   public void setParam(String key,
                        Object value)
   {
-    _parameters.put(key, value);
+    _parsed.parameters.put(key, value);
   }
 
 }
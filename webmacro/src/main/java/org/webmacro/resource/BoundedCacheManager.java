@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.resource;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.webmacro.Broker;
+import org.webmacro.InitException;
+import org.webmacro.Macro;
+import org.webmacro.ResourceException;
+import org.webmacro.TemplateVisitor;
+import org.webmacro.Visitable;
+import org.webmacro.engine.Variable;
+import org.webmacro.util.Settings;
+import org.webmacro.util.SubSettings;
+
+/**
+ * BoundedCacheManager -- a cache manager which keeps the total weight of what it holds under a
+ * configured maximum, evicting the least valuable entries first. Unlike ReloadingCacheManager it
+ * does not rely on SoftReferences, so memory use stays predictable under pressure.
+ * <p>
+ * Eviction is segmented LRU: new entries go into a probationary segment, and entries that are used
+ * again while there are promoted to a protected segment, which may take up to 80% of the maximum
+ * weight. Entries are evicted from the probationary segment, so a burst of one-off lookups cannot
+ * flush out the resources that are used all the time. Recency is tracked with a reference bit per
+ * entry rather than by reordering on every access, which keeps reads lock-free; only inserts,
+ * removals and eviction take a lock.
+ * <p>
+ * Settings, for resource type <i>type</i> or <code>*</code>:
+ * <ul>
+ * <li>BoundedCacheManager.<i>type</i>.MaximumWeight: the maximum total weight, in bytes with the
+ * default Weigher
+ * <li>BoundedCacheManager.<i>type</i>.Weigher: a {@link Weigher} class to estimate weights with
+ * <li>BoundedCacheManager.<i>type</i>.ReloadOnChange: reload resources when they change
+ * </ul>
+ */
+public class BoundedCacheManager
+  implements CacheManager
+{
+
+  static Logger _log = LoggerFactory.getLogger(BoundedCacheManager.class);
+
+  private static final String NAME = "BoundedCacheManager";
+
+  private static final int DEFAULT_MAXIMUM_WEIGHT = 16 * 1024 * 1024;
+
+  /**
+   * Percentage of the maximum weight that may be held by protected entries.
+   */
+  private static final int PROTECTED_PERCENT = 80;
+
+  private final ConcurrentHashMap<Object, Node> _cache = new ConcurrentHashMap<Object, Node>();
+
+  // the segments are circular lists with sentinel heads; the head's next
+  // element is the least recently promoted or added. All guarded by _lock.
+  private final Object _lock = new Object();
+  private final Node _probation = new Node(null);
+  private final Node _protected = new Node(null);
+  private long _weight = 0;
+  private long _protectedWeight = 0;
+
+  private long _maximumWeight;
+  private long _maximumProtectedWeight;
+  private Weigher _weigher;
+  private boolean _reloadOnChange;
+  private String _resourceType;
+
+  private final AtomicLong _evictions = new AtomicLong();
+
+  private static final class Node
+    extends CacheElement
+  {
+
+    final Object key;
+    Object value;
+    int weight;
+    CacheReloadContext reloadContext;
+
+    /**
+     * Set on each read, cleared when the entry is given a second chance.
+     */
+    volatile boolean referenced;
+
+    // guarded by _lock
+    Node prev = this, next = this;
+    boolean inProtected;
+
+    Node(Object key)
+    {
+      this.key = key;
+    }
+
+    @Override
+    public void setReloadContext(CacheReloadContext rc)
+    {
+      reloadContext = rc;
+    }
+  }
+
+  /**
+   * The Weigher used unless another is configured. It estimates the heap footprint of byte arrays,
+   * Strings, encoded blocks and parsed templates, and gives anything else a nominal weight.
+   */
+  public static class DefaultWeigher
+    implements Weigher
+  {
+
+    /** Nominal weight of an object we know nothing about. */
+    private static final int OBJECT_WEIGHT = 64;
+
+    private static final class TemplateWeigher
+      extends TemplateVisitor
+    {
+
+      int weight = 0;
+
+      @Override
+      public void visitString(String s)
+      {
+        weight += 40 + 2 * s.length();
+      }
+
+      @Override
+      public void beginDirective(String directiveName)
+      {
+        weight += OBJECT_WEIGHT;
+      }
+
+      @Override
+      public void visitVariable(Variable v,
+                                Object[] names)
+      {
+        weight += OBJECT_WEIGHT + 16 * names.length;
+      }
+
+      @Override
+      public void visitUnknownMacro(String macroClass,
+                                    Macro m)
+      {
+        weight += OBJECT_WEIGHT;
+      }
+    }
+
+    @Override
+    public int weigh(Object query,
+                     Object resource)
+    {
+      if (resource instanceof byte[]) {
+        return 16 + ((byte[]) resource).length;
+      } else if (resource instanceof byte[][]) {
+        byte[][] bytes = (byte[][]) resource;
+        int weight = 16 + 4 * bytes.length;
+        for (int i = 0; i < bytes.length; i++)
+          weight += 16 + bytes[i].length;
+        return weight;
+      } else if (resource instanceof String) {
+        return 40 + 2 * ((String) resource).length();
+      } else if (resource instanceof Visitable) {
+        TemplateWeigher tw = new TemplateWeigher();
+        try {
+          ((Visitable) resource).accept(tw);
+        } catch (RuntimeException e) {
+          // not parsed yet, or not something we can walk
+          _log.debug("Could not weigh " + query, e);
+        }
+        return OBJECT_WEIGHT + tw.weight;
+      }
+      return OBJECT_WEIGHT;
+    }
+  }
+
+  public BoundedCacheManager()
+  {
+  }
+
+  @Override
+  public void init(Broker b,
+                   Settings config,
+                   String resourceType)
+      throws InitException
+  {
+    Settings ourSettings, defaultSettings;
+
+    _resourceType = resourceType;
+
+    ourSettings = new SubSettings(config, NAME + "." + _resourceType);
+    defaultSettings = new SubSettings(config, NAME + ".*");
+
+    _maximumWeight =
+        ourSettings.getIntegerSetting("MaximumWeight",
+                                      defaultSettings.getIntegerSetting("MaximumWeight",
+                                                                        DEFAULT_MAXIMUM_WEIGHT));
+    _maximumProtectedWeight = _maximumWeight * PROTECTED_PERCENT / 100;
+    _reloadOnChange =
+        (ourSettings.containsKey("ReloadOnChange"))
+            ? ourSettings.getBooleanSetting("ReloadOnChange")
+            : ((defaultSettings.containsKey("ReloadOnChange"))
+                ? defaultSettings.getBooleanSetting("ReloadOnChange")
+                : true);
+
+    String weigher = ourSettings.getSetting("Weigher", defaultSettings.getSetting("Weigher"));
+    if (weigher == null || weigher.equals("")) {
+      _weigher = new DefaultWeigher();
+    } else {
+      String problem = "Unable to load weigher " + weigher + " for " + this;
+      try {
+        _weigher =
+            b.classForName(weigher).asSubclass(Weigher.class).getDeclaredConstructor()
+             .newInstance();
+      } catch (ClassNotFoundException e) {
+        throw new InitException(problem + ": no such class", e);
+      } catch (ClassCastException e) {
+        throw new InitException(problem + ": not a Weigher", e);
+      } catch (NoSuchMethodException e) {
+        throw new InitException(problem + ": it needs a no-argument constructor", e);
+      } catch (InstantiationException e) {
+        throw new InitException(problem + ": it is abstract", e);
+      } catch (IllegalAccessException e) {
+        throw new InitException(problem + ": its constructor must be public", e);
+      } catch (InvocationTargetException e) {
+        throw new InitException(problem + ": its constructor threw an exception",
+                                e.getTargetException());
+      }
+    }
+
+    _log.info(NAME + "." + _resourceType + ": maximumWeight=" + _maximumWeight + "; reload="
+              + _reloadOnChange + "; weigher=" + _weigher.getClass().getName());
+  }
+
+  /**
+   * Clear the cache.
+   */
+  @Override
+  public void flush()
+  {
+    synchronized (_lock) {
+      _cache.clear();
+      _probation.prev = _probation.next = _probation;
+      _protected.prev = _protected.next = _protected;
+      _weight = 0;
+      _protectedWeight = 0;
+    }
+  }
+
+  /**
+   * Close down the provider.
+   */
+  @Override
+  public void destroy()
+  {
+    flush();
+  }
+
+  @Override
+  public boolean supportsReload()
+  {
+    return _reloadOnChange;
+  }
+
+  /**
+   * Get the object associated with the specific query, first trying to look it up in a cache. If
+   * it's not there, then call load(String) to load it into the cache.
+   */
+  @Override
+  public Object get(final Object query,
+                    ResourceLoader helper)
+      throws ResourceException
+  {
+    Node n = _cache.get(query);
+    if (n != null
+        && !(_reloadOnChange && n.reloadContext != null && n.reloadContext.shouldReload())) {
+      n.referenced = true;
+      return n.value;
+    }
+
+    n = new Node(query);
+    Object o = helper.load(query, n);
+    if (o != null) {
+      n.value = o;
+      insert(n);
+    }
+    return o;
+  }
+
+  /**
+   * Get the object associated with the specific query, trying to look it up in a cache. If it's not
+   * there, return null.
+   */
+  @Override
+  public Object get(final Object query)
+  {
+    Node n = _cache.get(query);
+    if (n == null)
+      return null;
+    n.referenced = true;
+    return n.value;
+  }
+
+  /**
+   * Put an object in the cache.
+   */
+  @Override
+  public void put(final Object query,
+                  Object resource)
+  {
+    Node n = new Node(query);
+    n.value = resource;
+    insert(n);
+  }
+
+  /**
+   * Remove an element.
+   */
+  @Override
+  public void invalidate(final Object query)
+  {
+    synchronized (_lock) {
+      Node old = _cache.remove(query);
+      if (old != null)
+        unlink(old);
+    }
+  }
+
+  /**
+   * The total weight of everything in the cache.
+   */
+  public long getWeight()
+  {
+    synchronized (_lock) {
+      return _weight;
+    }
+  }
+
+  /**
+   * The number of entries evicted to keep the cache under its maximum weight.
+   */
+  public long getEvictionCount()
+  {
+    return _evictions.get();
+  }
+
+  private void insert(Node n)
+  {
+    n.weight = Math.max(0, _weigher.weigh(n.key, n.value));
+    if (n.weight > _maximumWeight) {
+      // it would push everything else out; don't cache it at all
+      _log.debug("not caching " + n.key + ", weight " + n.weight + " exceeds " + _maximumWeight);
+      invalidate(n.key);
+      return;
+    }
+
+    synchronized (_lock) {
+      Node old = _cache.put(n.key, n);
+      if (old != null)
+        unlink(old);
+      linkLast(_probation, n);
+      evict();
+    }
+  }
+
+  /**
+   * Evict entries until we are within our maximum weight. Must hold _lock.
+   */
+  private void evict()
+  {
+    while (_weight > _maximumWeight) {
+      Node victim = _probation.next;
+      if (victim == _probation) {
+        // everything is protected; evict the least recently used of those
+        victim = demote();
+        if (victim == null)
+          return;
+      } else if (victim.referenced) {
+        // used again since it arrived, so it earns a place in the protected segment
+        victim.referenced = false;
+        unlink(victim);
+        linkLast(_protected, victim);
+        while (_protectedWeight > _maximumProtectedWeight)
+          demote();
+        continue;
+      }
+      unlink(victim);
+      _cache.remove(victim.key, victim);
+      _evictions.incrementAndGet();
+      _log.debug("evicted: " + victim.key);
+    }
+  }
+
+  /**
+   * Move the least recently used protected entry back to the probationary segment, giving entries
+   * that have been used since they were last considered another turn. Must hold _lock.
+   *
+   * @return the demoted entry, or null if the protected segment is empty
+   */
+  private Node demote()
+  {
+    while (_protected.next != _protected) {
+      Node n = _protected.next;
+      unlink(n);
+      if (n.referenced) {
+        n.referenced = false;
+        linkLast(_protected, n);
+      } else {
+        linkLast(_probation, n);
+        return n;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Must hold _lock.
+   */
+  private void linkLast(Node segment,
+                        Node n)
+  {
+    n.prev = segment.prev;
+    n.next = segment;
+    segment.prev.next = n;
+    segment.prev = n;
+    n.inProtected = (segment == _protected);
+    _weight += n.weight;
+    if (n.inProtected)
+      _protectedWeight += n.weight;
+  }
+
+  /**
+   * Must hold _lock.
+   */
+  private void unlink(Node n)
+  {
+    if (n.next == n)
+      return;
+    n.prev.next = n.next;
+    n.next.prev = n.prev;
+    n.prev = n.next = n;
+    _weight -= n.weight;
+    if (n.inProtected)
+      _protectedWeight -= n.weight;
+  }
+
+  @Override
+  public String toString()
+  {
+    return NAME + "(type = " + _resourceType + ")";
+  }
+}
@@ -36,6 +36,23 @@ abstract public class CachingProvider
 
   private CacheManager _cache;
   protected boolean _cacheSupportsReload;
+  private TemplateDependencies _dependencies;
+
+  /**
+   * Stands in for the cache element while a resource loads, to catch its reload context.
+   */
+  private static final class LoadingElement
+    extends CacheElement
+  {
+
+    CacheReloadContext reloadContext;
+
+    @Override
+    public void setReloadContext(CacheReloadContext rc)
+    {
+      reloadContext = rc;
+    }
+  }
 
   public CachingProvider()
   {
@@ -69,6 +86,7 @@ abstract public class CachingProvider
     }
     _cache.init(b, config, getType());
     _cacheSupportsReload = _cache.supportsReload();
+    _dependencies = b.getTemplateDependencies();
   }
 
   /**
@@ -101,14 +119,25 @@ abstract public class CachingProvider
 
   /**
    * Delegates to ResourceLoader implementers the load operation by casting the query as a string
-   * and invoking the implemented method.
+   * and invoking the implemented method. If the cache supports reloading, the resource is cached
+   * with a reload context that also fires when anything it was built from changes.
+   * 
+   * @see TemplateDependencies
    */
   @Override
   public Object load(Object query,
                      CacheElement ce)
       throws ResourceException
   {
-    return ((ResourceLoader) this).load((String) query, ce);
+    if (!_cacheSupportsReload || ce == null)
+      return ((ResourceLoader) this).load((String) query, ce);
+    LoadingElement loading = new LoadingElement();
+    Object o = ((ResourceLoader) this).load((String) query, loading);
+    CacheReloadContext rc =
+        _dependencies.loaded(getType(), (String) query, o, loading.reloadContext);
+    if (rc != null)
+      ce.setReloadContext(rc);
+    return o;
   }
 
   @Override
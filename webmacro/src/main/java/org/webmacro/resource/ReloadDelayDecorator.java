@@ -37,6 +37,7 @@ public class ReloadDelayDecorator
   /** maps protocol types to Long objects */
   private Map<String, Long> reloadDelays;
   private long defaultDelay;
+  private ReloadWatcher watcher;
 
   public ReloadDelayDecorator()
   {
@@ -51,6 +52,7 @@ public class ReloadDelayDecorator
       throws InitException
   {
     defaultDelay = 0; // no delay
+    watcher = b.getReloadWatcher();
     synchronized (reloadDelays) {
       config.processListSetting("CheckForReloadDelay", new Settings.ListSettingHandler() {
         @Override
@@ -70,7 +72,8 @@ public class ReloadDelayDecorator
 
   /**
    * Looks up the "check for reload delay" for protocol and creates a suitable TimedReloadContext or
-   * passes back the original reload context if delay <= 0
+   * passes back the original reload context if delay <= 0. If the Broker's ReloadWatcher is
+   * enabled, file and jar reload contexts are handed to it instead.
    * 
    * @param protocol
    *          protocol to look up delay for
@@ -81,6 +84,10 @@ public class ReloadDelayDecorator
   public CacheReloadContext decorate(String protocol,
                                      CacheReloadContext reloadContext)
   {
+    if (watcher != null && watcher.isEnabled()
+        && (protocol.equals("file") || protocol.equals("jar"))) {
+      return watcher.watch(reloadContext);
+    }
     long delay;
     Long l;
     synchronized (reloadDelays) {
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.resource;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.webmacro.Broker;
+import org.webmacro.util.Settings;
+
+/**
+ * Checks cached files for changes on a background thread, so that asking whether one has changed
+ * is only a field read on the thread serving the request. ReloadDelayDecorator hands file and jar
+ * reload contexts to watch() when this is enabled; the Broker owns the one instance.
+ * <p>
+ * Settings:
+ * <ul>
+ * <li>ReloadWatcher.Interval: milliseconds between two checks of each file. Zero, the default,
+ * disables the watcher, leaving each request to check for itself as CheckForReloadDelay says.
+ * </ul>
+ * A change is noticed up to one interval after it is made. Java 6, which WebMacro supports, has
+ * no file change notification, so the thread checks each file's last-modified time the same way
+ * the request would have.
+ */
+public class ReloadWatcher
+{
+
+  static Logger _log = LoggerFactory.getLogger(ReloadWatcher.class);
+
+  private static final String NAME = "ReloadWatcher";
+
+  /**
+   * Latches the answer of the context it watches once that says the resource has changed.
+   */
+  private static final class WatchedReloadContext
+    extends CacheReloadContext
+  {
+
+    private final CacheReloadContext _watched;
+    private volatile boolean _changed = false;
+
+    WatchedReloadContext(CacheReloadContext watched)
+    {
+      _watched = watched;
+    }
+
+    /**
+     * Ask the watched context, from the watcher's thread. Returns true once it has changed.
+     */
+    boolean check()
+    {
+      if (!_changed && _watched.shouldReload())
+        _changed = true;
+      return _changed;
+    }
+
+    @Override
+    public boolean shouldReload()
+    {
+      return _changed;
+    }
+  }
+
+  // weak, so that a context is forgotten once its cache entry is
+  private final ConcurrentLinkedQueue<WeakReference<WatchedReloadContext>> _watched =
+      new ConcurrentLinkedQueue<WeakReference<WatchedReloadContext>>();
+  private ScheduledExecutorService _executor;
+
+  public ReloadWatcher()
+  {
+  }
+
+  /**
+   * Start checking in the background, if the ReloadWatcher.Interval setting is positive.
+   */
+  public void init(Broker b,
+                   Settings config)
+  {
+    long interval = config.getIntegerSetting(NAME + ".Interval", 0);
+    if (interval <= 0)
+      return;
+    _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable)
+      {
+        Thread t = new Thread(runnable, NAME);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    _executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run()
+      {
+        checkAll();
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+    _log.info(NAME + ": checking for changed files every " + interval + "ms");
+  }
+
+  /**
+   * Whether init() started the background thread.
+   */
+  public boolean isEnabled()
+  {
+    return _executor != null;
+  }
+
+  /**
+   * Return a reload context that answers what the given one last answered on the watcher's thread.
+   * Only call this if isEnabled().
+   */
+  public CacheReloadContext watch(CacheReloadContext reloadContext)
+  {
+    WatchedReloadContext watched = new WatchedReloadContext(reloadContext);
+    _watched.add(new WeakReference<WatchedReloadContext>(watched));
+    return watched;
+  }
+
+  /**
+   * Check every watched context once, dropping those that have changed or been forgotten.
+   */
+  void checkAll()
+  {
+    for (Iterator<WeakReference<WatchedReloadContext>> i = _watched.iterator(); i.hasNext();) {
+      WatchedReloadContext watched = i.next().get();
+      try {
+        if (watched == null || watched.check())
+          i.remove();
+      } catch (RuntimeException e) {
+        _log.warn(NAME + ": unable to check " + watched, e);
+      }
+    }
+  }
+
+  /**
+   * Stop the background thread.
+   */
+  public void destroy()
+  {
+    if (_executor != null)
+      _executor.shutdownNow();
+  }
+}
@@ -1,11 +1,14 @@
 package org.webmacro.resource;
 
 import java.lang.ref.SoftReference;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,12 +40,28 @@ public class ReloadingCacheManager
   private boolean _reloadOnChange = true, _useSoftReferences = true;
   private boolean _delayReloadChecks = false;
   private long _checkForReloadDelay;
+  private boolean _serveStaleWhileReloading = false;
 
-  // Used ClockDaemon instead of the original TimeLoop -- more efficient priority-queue based
-  // implementation
-  // Then renamed in move to java.util.concurrent
+  /**
+   * Loads currently in progress, by key. Only one thread loads a given key at a time; the others
+   * wait for its result (or serve the stale entry) rather than loading it again.
+   */
+  private final ConcurrentHashMap<Object, PendingLoad> _loading =
+      new ConcurrentHashMap<Object, PendingLoad>();
+  // the load each thread is waiting for, so that a wait that would never end can be refused
+  private final ConcurrentHashMap<Thread, PendingLoad> _waiting =
+      new ConcurrentHashMap<Thread, PendingLoad>();
+  private final AtomicLong _coalescedLoads = new AtomicLong();
+
+  // Expired entries are detected on access from their expiry time; this daemon
+  // only runs one periodic sweep to drop expired entries nobody asks for any more
   private ScheduledExecutorService _clockDaemon;
 
+  /**
+   * The shortest interval between two sweeps of the cache for expired entries.
+   */
+  private static final long MIN_SWEEP_INTERVAL = 1000;
+
   private abstract class MyCacheElement
     extends CacheElement
     implements Cloneable
@@ -50,6 +69,16 @@ public class ReloadingCacheManager
 
     private CacheReloadContext reloadContext = null;
 
+    /**
+     * When this element expires; Long.MAX_VALUE if it never does.
+     */
+    long expires = Long.MAX_VALUE;
+
+    final boolean isExpired(long now)
+    {
+      return now >= expires;
+    }
+
     @Override
     public void setReloadContext(CacheReloadContext rc)
     {
@@ -102,6 +131,54 @@ public class ReloadingCacheManager
     }
   }
 
+  /**
+   * The outcome of a load that other threads may be waiting for.
+   */
+  private static final class PendingLoad
+  {
+
+    final Thread _owner = Thread.currentThread();
+    private final CountDownLatch _done = new CountDownLatch(1);
+    private Object _result;
+    private Throwable _failure;
+
+    void succeeded(Object o)
+    {
+      _result = o;
+      _done.countDown();
+    }
+
+    void failed(Throwable t)
+    {
+      _failure = t;
+      _done.countDown();
+    }
+
+    Object await()
+        throws ResourceException
+    {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          _done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+
+      if (_failure instanceof ResourceException)
+        throw (ResourceException) _failure;
+      if (_failure instanceof RuntimeException)
+        throw (RuntimeException) _failure;
+      if (_failure instanceof Error)
+        throw (Error) _failure;
+      return _result;
+    }
+  }
+
   public ReloadingCacheManager()
   {
   }
@@ -152,10 +229,29 @@ public class ReloadingCacheManager
         (ourSettings.getIntegerSetting("CheckForReloadDelay",
                                        defaultSettings.getIntegerSetting("CheckForReloadDelay", -1)));
     _delayReloadChecks = _checkForReloadDelay > 0;
+    _serveStaleWhileReloading =
+        (ourSettings.containsKey("ServeStaleWhileReloading"))
+            ? ourSettings.getBooleanSetting("ServeStaleWhileReloading")
+            : ((defaultSettings.containsKey("ServeStaleWhileReloading"))
+                ? defaultSettings.getBooleanSetting("ServeStaleWhileReloading")
+                : false);
 
     _log.info(NAME + "." + _resourceType + ": " + "; expireTime=" + _cacheDurationMilliseconds
               + "; reload=" + _reloadOnChange + "; softReference=" + _useSoftReferences
-              + "; checkForReloadDelay=" + _checkForReloadDelay);
+              + "; checkForReloadDelay=" + _checkForReloadDelay + "; serveStaleWhileReloading="
+              + _serveStaleWhileReloading);
+
+    // if timeout is < 0, then entries never expire and there is nothing to sweep
+    if (_cacheDurationMilliseconds >= 0) {
+      long interval = Math.max(_cacheDurationMilliseconds, MIN_SWEEP_INTERVAL);
+      _clockDaemon.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run()
+        {
+          sweep();
+        }
+      }, interval, interval, TimeUnit.MILLISECONDS);
+    }
   }
 
   private MyCacheElement newCacheElement()
@@ -191,16 +287,29 @@ public class ReloadingCacheManager
     return _reloadOnChange;
   }
 
-  private final void scheduleRemoval(final Object key)
+  /**
+   * Put an element in the cache, stamped with its expiry time.
+   */
+  private final void cache(final Object key,
+                           MyCacheElement r)
   {
-    _clockDaemon.schedule(new Runnable() {
-      @Override
-      public void run()
-      {
-        _cache.remove(key);
-        _log.debug("cache expired: " + key);
-      }
-    }, _cacheDurationMilliseconds, TimeUnit.MILLISECONDS);
+    if (_cacheDurationMilliseconds >= 0)
+      r.expires = System.currentTimeMillis() + _cacheDurationMilliseconds;
+    _cache.put(key, r);
+    _log.debug("cached: " + key + " for " + _cacheDurationMilliseconds);
+  }
+
+  /**
+   * Remove every expired element from the cache. An element is only removed if it is still the
+   * one that expired, so an entry that has just been reloaded is left alone.
+   */
+  private final void sweep()
+  {
+    final long now = System.currentTimeMillis();
+    for (Map.Entry<Object, MyCacheElement> entry : _cache.entrySet()) {
+      if (entry.getValue().isExpired(now) && _cache.remove(entry.getKey(), entry.getValue()))
+        _log.debug("cache expired: " + entry.getKey());
+    }
   }
 
   /**
@@ -220,28 +329,111 @@ public class ReloadingCacheManager
     if (r != null) {
       o = r.getObject();
 
+      if (o != null && r.isExpired(System.currentTimeMillis()))
+        reload = true;
       // should the template be reloaded, regardless of cached status?
-      if (o != null && r.reloadContext != null && _reloadOnChange)
+      else if (o != null && r.reloadContext != null && _reloadOnChange)
         reload = r.reloadContext.shouldReload();
     }
     if (o == null || reload) {
-      r = newCacheElement();
-      o = helper.load(query, r);
-      if (o != null) {
-        r.setObject(o);
-        _cache.put(query, r);
-        _log.debug("cached: " + query + " for " + _cacheDurationMilliseconds);
-        try {
-          // if timeout is < 0,
-          // then don't schedule a removal from cache
-          if (_cacheDurationMilliseconds >= 0)
-            scheduleRemoval(query);
-        } catch (Exception e) {
-          _log.error("CachingProvider caught an exception", e);
+      o = load(query, helper, r, reload ? o : null);
+    }
+    return o;
+  }
+
+  /**
+   * Load the object for a query and cache it. If another thread is already loading the same query
+   * we don't load it again: we wait for that thread's result instead, or, if we have a stale copy
+   * and ServeStaleWhileReloading is set, return the stale copy straight away.
+   * <p>
+   * A load that needs itself, such as a template that includes itself as a macro, directly or
+   * through other templates and other threads, fails with a ResourceException rather than waiting
+   * for ever.
+   * 
+   * @param seen
+   *          the cache element the caller found, if any
+   * @param stale
+   *          the out of date object the caller found, if any
+   */
+  private Object load(final Object query,
+                      ResourceLoader helper,
+                      MyCacheElement seen,
+                      Object stale)
+      throws ResourceException
+  {
+    PendingLoad pending = new PendingLoad();
+    PendingLoad inProgress = _loading.putIfAbsent(query, pending);
+    if (inProgress != null) {
+      if (stale != null && _serveStaleWhileReloading) {
+        _coalescedLoads.incrementAndGet();
+        return stale;
+      }
+      Thread self = Thread.currentThread();
+      _waiting.put(self, inProgress);
+      try {
+        if (waitsFor(inProgress, self))
+          throw new ResourceException("Circular load: " + query + " is needed to load itself");
+        _coalescedLoads.incrementAndGet();
+        return inProgress.await();
+      } finally {
+        _waiting.remove(self);
+      }
+    }
+
+    try {
+      // someone may have finished loading it between our lookup and now
+      MyCacheElement r = _cache.get(query);
+      Object o =
+          (r != null && r != seen && !r.isExpired(System.currentTimeMillis()))
+              ? r.getObject()
+              : null;
+      if (o == null) {
+        r = newCacheElement();
+        o = helper.load(query, r);
+        if (o != null) {
+          r.setObject(o);
+          cache(query, r);
         }
       }
+      pending.succeeded(o);
+      return o;
+    } catch (ResourceException e) {
+      pending.failed(e);
+      throw e;
+    } catch (RuntimeException e) {
+      pending.failed(e);
+      throw e;
+    } catch (Error e) {
+      pending.failed(e);
+      throw e;
+    } finally {
+      _loading.remove(query, pending);
     }
-    return o;
+  }
+
+  /**
+   * Return true if the thread loading p is, perhaps through other loading threads, waiting for
+   * the given thread: then waiting for p would never end. A thread records what it waits for
+   * before calling this, so of two threads that start waiting for each other at least one sees it.
+   */
+  private boolean waitsFor(PendingLoad p,
+                           Thread self)
+  {
+    for (int hops = 0; p != null && hops <= _waiting.size(); hops++) {
+      if (p._owner == self)
+        return true;
+      p = _waiting.get(p._owner);
+    }
+    return false;
+  }
+
+  /**
+   * The number of loads that were not performed because another thread was already loading the
+   * same resource.
+   */
+  public long getCoalescedLoadCount()
+  {
+    return _coalescedLoads.get();
   }
 
   /**
@@ -252,7 +444,7 @@ public class ReloadingCacheManager
   public Object get(final Object query)
   {
     MyCacheElement r = _cache.get(query);
-    if (r != null)
+    if (r != null && !r.isExpired(System.currentTimeMillis()))
       return r.getObject();
     else
       return null;
@@ -267,12 +459,7 @@ public class ReloadingCacheManager
   {
     MyCacheElement r = newCacheElement();
     r.setObject(resource);
-
-    _cache.put(query, r);
-    if (_cacheDurationMilliseconds >= 0) {
-      _log.debug("cached: " + query + " for " + _cacheDurationMilliseconds);
-      scheduleRemoval(query);
-    }
+    cache(query, r);
   }
 
   /** Removes a specific entry from the cache. */
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.resource;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.webmacro.engine.WMTemplate;
+
+/**
+ * Which cached resources were built into which templates. A template that pulls in another with
+ * #include as macro, or a file with #include as text, copies what it needs when it is built, so
+ * it has to be built again when that changes. The Broker keeps one of these; every CachingProvider
+ * tells it what it loads, and gives each template a reload context that fires when its own does
+ * or when that of anything it depends on does. Since those are in turn the reload contexts of
+ * their own dependencies, a change is noticed by every template that depends on it, however
+ * indirectly.
+ * <p>
+ * Resources are named by keys made by key(), such as <code>template:macros.wm</code>. Templates
+ * included at runtime are looked up afresh for each render, so they are not dependencies.
+ * <p>
+ * The reload contexts are only held weakly: the cache holds each one as long as its resource is
+ * cached, and a dependent's context holds those of its dependencies. Once a resource is evicted or
+ * expires and nothing built from it is cached, its context can be collected, which also lets the
+ * ReloadWatcher stop polling it, and what is known about the resource is forgotten.
+ */
+public class TemplateDependencies
+{
+
+  /**
+   * Reloads when its own context or any of its dependencies' does.
+   */
+  private static final class DependentReloadContext
+    extends CacheReloadContext
+  {
+
+    private final CacheReloadContext _own;
+    private final CacheReloadContext[] _dependencies;
+
+    DependentReloadContext(CacheReloadContext own,
+                           CacheReloadContext[] dependencies)
+    {
+      _own = own;
+      _dependencies = dependencies;
+    }
+
+    @Override
+    public boolean shouldReload()
+    {
+      if (_own != null && _own.shouldReload())
+        return true;
+      for (int i = 0; i < _dependencies.length; i++) {
+        if (_dependencies[i].shouldReload())
+          return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * A weak reference to the reload context a resource was loaded with, which knows its key.
+   */
+  private static final class ContextReference
+    extends WeakReference<CacheReloadContext>
+  {
+
+    final String key;
+
+    ContextReference(String key,
+                     CacheReloadContext rc,
+                     ReferenceQueue<CacheReloadContext> queue)
+    {
+      super(rc, queue);
+      this.key = key;
+    }
+  }
+
+  // the reload context each resource was last loaded with
+  private final Map<String, ContextReference> _contexts =
+      new ConcurrentHashMap<String, ContextReference>();
+  private final ReferenceQueue<CacheReloadContext> _collected =
+      new ReferenceQueue<CacheReloadContext>();
+
+  // guarded by this
+  private final Map<String, Set<String>> _dependencies = new HashMap<String, Set<String>>();
+  private final Map<String, Set<String>> _dependents = new HashMap<String, Set<String>>();
+
+  public TemplateDependencies()
+  {
+  }
+
+  /**
+   * The key for a resource of the given type, as in Broker.get(type, name).
+   */
+  public static String key(String type,
+                           String name)
+  {
+    return type + ":" + name;
+  }
+
+  /**
+   * Called by a CachingProvider which has just loaded a resource, with the reload context the
+   * loader gave it, which may be null. Returns the reload context to cache it with instead.
+   */
+  CacheReloadContext loaded(String type,
+                            String name,
+                            Object resource,
+                            CacheReloadContext reloadContext)
+  {
+    forgetCollected();
+    String key = key(type, name);
+    Set<String> dependencies =
+        (resource instanceof WMTemplate) ? ((WMTemplate) resource).getDependencies() : null;
+    setDependencies(key, dependencies);
+
+    if (dependencies != null && !dependencies.isEmpty()) {
+      List<CacheReloadContext> contexts = new ArrayList<CacheReloadContext>();
+      for (String dependency : dependencies) {
+        CacheReloadContext rc = getReloadContext(dependency);
+        if (rc != null)
+          contexts.add(rc);
+      }
+      if (!contexts.isEmpty()) {
+        reloadContext =
+            new DependentReloadContext(reloadContext,
+                                       contexts.toArray(new CacheReloadContext[contexts.size()]));
+      }
+    }
+    if (reloadContext == null)
+      _contexts.remove(key);
+    else
+      _contexts.put(key, new ContextReference(key, reloadContext, _collected));
+    return reloadContext;
+  }
+
+  /**
+   * The reload context the resource was last loaded with, or null if it had none or is no longer
+   * cached.
+   */
+  CacheReloadContext getReloadContext(String key)
+  {
+    ContextReference ref = _contexts.get(key);
+    return (ref == null) ? null : ref.get();
+  }
+
+  /**
+   * Drop what is known about resources whose reload contexts have been collected, unless they
+   * have been loaded again since.
+   */
+  private void forgetCollected()
+  {
+    ContextReference ref;
+    while ((ref = (ContextReference) _collected.poll()) != null) {
+      if (_contexts.remove(ref.key, ref))
+        setDependencies(ref.key, null);
+    }
+  }
+
+  private synchronized void setDependencies(String key,
+                                            Set<String> dependencies)
+  {
+    Set<String> old = _dependencies.remove(key);
+    if (old != null) {
+      for (String dependency : old) {
+        Set<String> dependents = _dependents.get(dependency);
+        dependents.remove(key);
+        if (dependents.isEmpty())
+          _dependents.remove(dependency);
+      }
+    }
+    if (dependencies == null || dependencies.isEmpty())
+      return;
+    _dependencies.put(key, new LinkedHashSet<String>(dependencies));
+    for (String dependency : dependencies) {
+      Set<String> dependents = _dependents.get(dependency);
+      if (dependents == null) {
+        dependents = new LinkedHashSet<String>();
+        _dependents.put(dependency, dependents);
+      }
+      dependents.add(key);
+    }
+  }
+
+  /**
+   * The keys of the resources the given one was built from, when it was last loaded.
+   */
+  public synchronized Set<String> getDependencies(String key)
+  {
+    forgetCollected();
+    Set<String> s = _dependencies.get(key);
+    return (s == null) ? Collections.<String> emptySet() : new LinkedHashSet<String>(s);
+  }
+
+  /**
+   * The keys of the resources built from the given one, directly or not.
+   */
+  public synchronized Set<String> getDependents(String key)
+  {
+    forgetCollected();
+    Set<String> all = new LinkedHashSet<String>();
+    List<String> todo = new ArrayList<String>();
+    todo.add(key);
+    while (!todo.isEmpty()) {
+      Set<String> s = _dependents.get(todo.remove(todo.size() - 1));
+      if (s == null)
+        continue;
+      for (String dependent : s) {
+        if (all.add(dependent))
+          todo.add(dependent);
+      }
+    }
+    return all;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "TemplateDependencies" + _dependencies;
+  }
+}
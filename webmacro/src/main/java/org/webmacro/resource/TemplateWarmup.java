@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.resource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.webmacro.Broker;
+import org.webmacro.util.Settings;
+
+/**
+ * Loads templates into the template provider's cache when the Broker starts, so that the first
+ * request for each page does not have to parse it. Templates are found by walking the TemplatePath
+ * directories, and any file system TemplateLoaderPath, for names matching the globs in
+ * <code>TemplateWarmup.Paths</code>; they are then fetched through the Broker on a small pool of
+ * daemon threads, exactly as a request would fetch them.
+ * <p>
+ * Settings:
+ * <ul>
+ * <li>TemplateWarmup.Paths: globs relative to the template directories, separated by commas or
+ * spaces, such as <code>**&#47;*.wm</code>. <code>*</code> and <code>?</code> do not match
+ * <code>/</code>; <code>**</code> does. Empty, the default, disables warm-up.
+ * <li>TemplateWarmup.Threads: size of the pool; 0 means one per processor
+ * <li>TemplateWarmup.Wait: if true, Broker initialization waits for warm-up to finish
+ * </ul>
+ * Use isDone() or await() to find out when the templates are ready, and getResults() for what
+ * happened to each of them.
+ */
+public class TemplateWarmup
+{
+
+  static Logger _log = LoggerFactory.getLogger(TemplateWarmup.class);
+
+  private static final String NAME = "TemplateWarmup";
+
+  /**
+   * What happened when one template was loaded.
+   */
+  public static final class Result
+  {
+
+    private final String _name;
+    private final long _loadTime;
+    private final Exception _error;
+
+    Result(String name,
+           long loadTime,
+           Exception error)
+    {
+      _name = name;
+      _loadTime = loadTime;
+      _error = error;
+    }
+
+    /**
+     * The template name, as it would be passed to Broker.get("template", name).
+     */
+    public String getName()
+    {
+      return _name;
+    }
+
+    /**
+     * Milliseconds it took to read, parse and build the template.
+     */
+    public long getLoadTime()
+    {
+      return _loadTime;
+    }
+
+    /**
+     * Why the template could not be loaded, or null if it was.
+     */
+    public Exception getError()
+    {
+      return _error;
+    }
+
+    public boolean isLoaded()
+    {
+      return _error == null;
+    }
+
+    @Override
+    public String toString()
+    {
+      return _name + ": " + ((_error == null) ? "loaded" : "failed (" + _error + ")") + " in "
+             + _loadTime + "ms";
+    }
+  }
+
+  private final List<Result> _results = Collections.synchronizedList(new ArrayList<Result>());
+  private final AtomicInteger _failures = new AtomicInteger();
+  private final AtomicInteger _remaining = new AtomicInteger();
+  private volatile CountDownLatch _done = new CountDownLatch(0);
+  private ThreadPoolExecutor _executor;
+  private int _templateCount;
+
+  public TemplateWarmup()
+  {
+  }
+
+  /**
+   * Find the templates to load and start loading them.
+   */
+  public void init(final Broker b,
+                   Settings config)
+  {
+    List<Pattern> patterns = new ArrayList<Pattern>();
+    StringTokenizer st = new StringTokenizer(config.getSetting(NAME + ".Paths", ""), ", \t");
+    while (st.hasMoreTokens())
+      patterns.add(globToPattern(st.nextToken()));
+    if (patterns.isEmpty())
+      return;
+
+    final long start = System.currentTimeMillis();
+    Set<String> names = new LinkedHashSet<String>();
+    List<File> roots = getRoots(config);
+    for (int i = 0; i < roots.size(); i++)
+      findTemplates(roots.get(i), "", patterns, names);
+    _templateCount = names.size();
+    _log.info(NAME + ": loading " + _templateCount + " templates from " + roots);
+    if (_templateCount == 0)
+      return;
+
+    int threads = config.getIntegerSetting(NAME + ".Threads", 0);
+    if (threads <= 0)
+      threads = Runtime.getRuntime().availableProcessors();
+    threads = Math.min(threads, _templateCount);
+    _executor =
+        new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                               new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                               {
+                                 private final AtomicInteger _count = new AtomicInteger();
+
+                                 @Override
+                                 public Thread newThread(Runnable r)
+                                 {
+                                   Thread t = new Thread(r, NAME + "-" + _count.incrementAndGet());
+                                   t.setDaemon(true);
+                                   return t;
+                                 }
+                               });
+
+    _remaining.set(_templateCount);
+    _done = new CountDownLatch(_templateCount);
+    for (final String name : names) {
+      _executor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          long t = System.currentTimeMillis();
+          Exception error = null;
+          try {
+            b.get("template", name);
+          } catch (Exception e) {
+            error = e;
+            _failures.incrementAndGet();
+            _log.warn(NAME + ": could not load " + name, e);
+          } finally {
+            _results.add(new Result(name, System.currentTimeMillis() - t, error));
+            if (_remaining.decrementAndGet() == 0) {
+              _log.info(NAME + ": loaded " + (_templateCount - _failures.get()) + " of "
+                        + _templateCount + " templates in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+            _done.countDown();
+          }
+        }
+      });
+    }
+    // the threads go away once the queue is drained
+    _executor.shutdown();
+
+    if (config.getBooleanSetting(NAME + ".Wait")) {
+      try {
+        _done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * True once every template found has been loaded or has failed to load; also true if there was
+   * nothing to do.
+   */
+  public boolean isDone()
+  {
+    return _done.getCount() == 0;
+  }
+
+  /**
+   * Wait up to the given time for warm-up to finish.
+   *
+   * @return true if it finished
+   */
+  public boolean await(long timeout,
+                       TimeUnit unit)
+      throws InterruptedException
+  {
+    return _done.await(timeout, unit);
+  }
+
+  /**
+   * The number of templates found to load.
+   */
+  public int getTemplateCount()
+  {
+    return _templateCount;
+  }
+
+  /**
+   * The number of templates that could not be loaded so far.
+   */
+  public int getFailureCount()
+  {
+    return _failures.get();
+  }
+
+  /**
+   * One result for each template loaded so far, in the order they finished.
+   */
+  public List<Result> getResults()
+  {
+    synchronized (_results) {
+      return new ArrayList<Result>(_results);
+    }
+  }
+
+  /**
+   * Stop loading templates.
+   */
+  public void destroy()
+  {
+    if (_executor != null)
+      _executor.shutdownNow();
+  }
+
+  /**
+   * The TemplatePath directories, then the file system TemplateLoaderPaths.
+   */
+  private static List<File> getRoots(Settings config)
+  {
+    List<File> roots = new ArrayList<File>();
+    StringTokenizer st =
+        new StringTokenizer(config.getSetting("TemplatePath", ""),
+                            System.getProperty("path.separator"));
+    while (st.hasMoreTokens())
+      roots.add(new File(st.nextToken()));
+
+    for (int i = 1;; i++) {
+      String path = config.getSetting("TemplateLoaderPath." + i);
+      if (path == null)
+        break;
+      int colon = path.indexOf(':');
+      String protocol = (colon > 1) ? path.substring(0, colon) : "default";
+      if (protocol.equals("default") || protocol.equals("file")) {
+        roots.add(new File((colon > 1) ? path.substring(colon + 1) : path));
+      }
+    }
+    return roots;
+  }
+
+  private static void findTemplates(File dir,
+                                    String prefix,
+                                    List<Pattern> patterns,
+                                    Set<String> names)
+  {
+    File[] files = dir.listFiles();
+    if (files == null)
+      return;
+    for (int i = 0; i < files.length; i++) {
+      String name = prefix + files[i].getName();
+      if (files[i].isDirectory()) {
+        findTemplates(files[i], name + "/", patterns, names);
+      } else {
+        for (int j = 0; j < patterns.size(); j++) {
+          if (patterns.get(j).matcher(name).matches()) {
+            names.add(name);
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Translate a glob into a regular expression: ** matches anything, * and ? anything but a /.
+   */
+  static Pattern globToPattern(String glob)
+  {
+    StringBuilder re = new StringBuilder();
+    int len = glob.length();
+    for (int i = 0; i < len; i++) {
+      char c = glob.charAt(i);
+      if (c == '*' && i + 1 < len && glob.charAt(i + 1) == '*') {
+        i++;
+        if (i + 1 < len && glob.charAt(i + 1) == '/') {
+          // **/ also matches no directory at all
+          i++;
+          re.append("(?:.*/)?");
+        } else {
+          re.append(".*");
+        }
+      } else if (c == '*') {
+        re.append("[^/]*");
+      } else if (c == '?') {
+        re.append("[^/]");
+      } else {
+        re.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(re.toString());
+  }
+}
@@ -20,13 +20,13 @@ import java.io.Reader;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.webmacro.Broker;
-import org.webmacro.TemplateException;
 import org.webmacro.WMConstants;
 import org.webmacro.engine.WMTemplate;
 import org.webmacro.servlet.LocaleTool;
@@ -216,17 +216,15 @@ public class URLTemplate
   }
 
   @Override
-  public void parse()
-      throws IOException, TemplateException
+  protected void initParameters(Map<Object, Object> parameters)
   {
-    super.parse();
-    if ((_outputEncoding != null) && (getParam(WMConstants.TEMPLATE_OUTPUT_ENCODING) == null)) {
+    if ((_outputEncoding != null) && (parameters.get(WMConstants.TEMPLATE_OUTPUT_ENCODING) == null)) {
       _log.debug("Setting output encoding to " + _outputEncoding);
-      setParam(WMConstants.TEMPLATE_OUTPUT_ENCODING, _outputEncoding);
+      parameters.put(WMConstants.TEMPLATE_OUTPUT_ENCODING, _outputEncoding);
     }
-    if ((_outputLocale != null) && (getParam(WMConstants.TEMPLATE_LOCALE) == null)) {
+    if ((_outputLocale != null) && (parameters.get(WMConstants.TEMPLATE_LOCALE) == null)) {
       _log.debug("Setting output locale to " + _outputLocale);
-      setParam(WMConstants.TEMPLATE_LOCALE, _outputLocale);
+      parameters.put(WMConstants.TEMPLATE_LOCALE, _outputLocale);
     }
   }
 }
@@ -47,6 +47,8 @@ final public class UrlProvider
 
   private String defaultEncoding;
 
+  private ReloadDelayDecorator reloadDelay;
+
   /**
    * We serve up "url" type resources.
    */
@@ -64,6 +66,8 @@ final public class UrlProvider
     super.init(b, config);
     _broker = b;
     defaultEncoding = config.getSetting("TemplateEncoding");
+    reloadDelay = new ReloadDelayDecorator();
+    reloadDelay.init(b, config);
   }
 
   /**
@@ -73,6 +77,10 @@ final public class UrlProvider
    * Http expires information will be obeyed between the MIN_TIMEOUT and MAX_TIMEOUT bounds. URLs
    * which do not specify a timeout, and files from the filesystem, will be cached for AVG_TIMEOUT
    * milliseconds.
+   * <p>
+   * If the cache manager supports reloading, files (and jar entries) are loaded again once their
+   * last-modified time changes, checked no more often than the CheckForReloadDelay for the
+   * protocol. Other URLs are not asked over the network on every use, and just expire.
    */
   @Override
   final public Object load(String name,
@@ -103,6 +111,14 @@ final public class UrlProvider
         }
       }
 
+      URL loaded = uc.getURL();
+      if (ce != null && _cacheSupportsReload
+          && (loaded.getProtocol().equals("file") || loaded.getProtocol().equals("jar"))) {
+        CacheReloadContext reloadContext =
+            new UrlReloadContext(loaded, getUrlLastModified(loaded));
+        ce.setReloadContext(reloadDelay.decorate(loaded.getProtocol(), reloadContext));
+      }
+
       String encoding = uc.getContentEncoding();
       if (encoding == null) {
         // we have to guess encoding, so let's take
@@ -186,4 +202,27 @@ final public class UrlProvider
       return u.openStream();
   }
 
+  /**
+   * ReloadContext for URLs. Uses last-modified to determine if the resource should be reloaded.
+   */
+  private static class UrlReloadContext
+    extends CacheReloadContext
+  {
+
+    private long lastModified;
+    private URL url;
+
+    public UrlReloadContext(URL url,
+                            long lastModified)
+    {
+      this.url = url;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public boolean shouldReload()
+    {
+      return (lastModified != getUrlLastModified(url));
+    }
+  }
 }
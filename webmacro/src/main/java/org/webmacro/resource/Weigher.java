@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.resource;
+
+/**
+ * A Weigher estimates how much memory a cached resource takes up, so that a
+ * {@link BoundedCacheManager} can keep the total under its configured maximum. Weights need not
+ * be exact, but should be in the same unit (normally bytes) for everything in one cache.
+ * Implementations must have a public default constructor.
+ */
+public interface Weigher
+{
+
+  /**
+   * Return the weight of the resource cached under the given key. Must not be negative.
+   */
+  public int weigh(Object query,
+                   Object resource);
+}
@@ -13,6 +13,7 @@ package org.webmacro.servlet;
 
 import org.webmacro.Context;
 import org.webmacro.ContextTool;
+import org.webmacro.broker.StatelessContextObjectFactory;
 
 /**
  * Provide templates a uniform way of dealing with arrays and Lists
@@ -24,6 +25,7 @@ import org.webmacro.ContextTool;
  */
 public class ListTool
   extends ContextTool
+  implements StatelessContextObjectFactory
 {
 
   @Override
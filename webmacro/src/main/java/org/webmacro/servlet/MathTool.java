@@ -13,6 +13,7 @@ package org.webmacro.servlet;
 
 import org.webmacro.Context;
 import org.webmacro.ContextTool;
+import org.webmacro.broker.StatelessContextObjectFactory;
 import org.webmacro.PropertyException;
 
 /**
@@ -23,6 +24,7 @@ import org.webmacro.PropertyException;
 
 public class MathTool
   extends ContextTool
+  implements StatelessContextObjectFactory
 {
 
   /** our lonely singleton */
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OutputStream onto a servlet response which only asks the response for its OutputStream when
+ * the first bytes are written. This lets a template keep setting headers and the content type
+ * while it is being evaluated, right up until WMServlet streams the first part of the page out.
+ * <p>
+ * If the response's Writer has already been used, the bytes are held until close() and then
+ * decoded onto the Writer, which is what WMServlet does in buffered mode too.
+ */
+final class ResponseOutputStream
+  extends OutputStream
+{
+
+  static Logger _log = LoggerFactory.getLogger(ResponseOutputStream.class);
+
+  private final HttpServletResponse _response;
+  private final String _encoding;
+
+  private OutputStream _out = null;
+  private ByteArrayOutputStream _writerBuffer = null;
+
+  ResponseOutputStream(HttpServletResponse response,
+                       String encoding)
+  {
+    _response = response;
+    _encoding = encoding;
+  }
+
+  private OutputStream getOut()
+      throws IOException
+  {
+    if (_out == null) {
+      try {
+        _out = _response.getOutputStream();
+      } catch (IllegalStateException e) {
+        // the Writer has already been used, so we can't stream
+        _log.debug("Using Writer instead of OutputStream");
+        _writerBuffer = new ByteArrayOutputStream();
+        _out = _writerBuffer;
+      }
+    }
+    return _out;
+  }
+
+  @Override
+  public void write(int b)
+      throws IOException
+  {
+    getOut().write(b);
+  }
+
+  @Override
+  public void write(byte[] b,
+                    int off,
+                    int len)
+      throws IOException
+  {
+    getOut().write(b, off, len);
+  }
+
+  @Override
+  public void flush()
+      throws IOException
+  {
+    if (_out != null && _writerBuffer == null) {
+      _out.flush();
+    }
+  }
+
+  /**
+   * Flush what we have to the response. The response's own stream is left open for the servlet
+   * container to close.
+   */
+  @Override
+  public void close()
+      throws IOException
+  {
+    if (_writerBuffer != null) {
+      _response.getWriter().write(new String(_writerBuffer.toByteArray(), _encoding));
+      _writerBuffer = null;
+    } else {
+      flush();
+    }
+  }
+}
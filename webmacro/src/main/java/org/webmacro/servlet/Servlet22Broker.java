@@ -99,12 +99,13 @@ public class Servlet22Broker
   protected void init()
       throws InitException
   {
-    super.init();
+    // set up before super.init(), which may start loading templates
     String s = getSetting("Servlet22Broker.TemplateLocation");
     if (s == null || s.trim().equals(""))
       _templatePrefix = null;
     else
       _templatePrefix = (s.endsWith("/")) ? s : s + "/";
+    super.init();
   }
 
   public static Broker getBroker(Servlet s,
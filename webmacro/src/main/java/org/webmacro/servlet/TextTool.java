@@ -13,6 +13,7 @@ package org.webmacro.servlet;
 
 import org.webmacro.Context;
 import org.webmacro.ContextTool;
+import org.webmacro.broker.StatelessContextObjectFactory;
 import org.webmacro.PropertyException;
 import org.webmacro.WebMacroRuntimeException;
 
@@ -33,6 +34,7 @@ import java.util.List;
 
 public class TextTool
   extends ContextTool
+  implements StatelessContextObjectFactory
 {
 
   /** our lonely singleton */
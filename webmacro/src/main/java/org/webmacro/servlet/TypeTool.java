@@ -13,6 +13,7 @@ package org.webmacro.servlet;
 
 import org.webmacro.Context;
 import org.webmacro.ContextTool;
+import org.webmacro.broker.StatelessContextObjectFactory;
 
 /**
  * Provide templates a way to cast objects to primitive type wrappers
@@ -24,6 +25,7 @@ import org.webmacro.ContextTool;
  */
 public class TypeTool
   extends ContextTool
+  implements StatelessContextObjectFactory
 {
 
   @Override
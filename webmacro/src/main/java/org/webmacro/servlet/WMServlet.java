@@ -17,6 +17,8 @@ import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.lang.reflect.Method;
 import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -28,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.webmacro.Broker;
 import org.webmacro.Context;
+import org.webmacro.FastWriter;
 import org.webmacro.InitException;
 import org.webmacro.NotFoundException;
 import org.webmacro.PropertyException;
@@ -59,6 +62,9 @@ abstract public class WMServlet
   private WebMacro _wm = null;
   private Broker _broker = null;
   private boolean _started = false;
+  private int _streamingThreshold = 0;
+  private boolean _unavailableDuringWarmup = false;
+  private BlockingQueue<WebContext> _contextPool = null;
   /**
    * The name of the config entry we look for to find out what to call the variable used in the
    * ERROR_TEMPLATE.
@@ -76,6 +82,25 @@ abstract public class WMServlet
   final static String ERROR_TEMPLATE_DEFAULT = "error.wm";
   final static String ERROR_VARIABLE_DEFAULT = "error";
 
+  /**
+   * The name of the config entry giving the number of bytes of output after which a page is
+   * streamed to the client while it is still being rendered. Zero, the default, buffers the whole
+   * page before writing it.
+   */
+  final static String STREAMING_THRESHOLD = "WMServlet.StreamingThreshold";
+
+  /**
+   * The name of the config entry which, if true, makes us answer 503 Service Unavailable until the
+   * Broker's template warm-up has finished, so that a load balancer holds off sending us traffic.
+   */
+  final static String UNAVAILABLE_DURING_WARMUP = "WMServlet.UnavailableDuringWarmup";
+
+  /**
+   * The name of the config entry giving the most WebContexts to keep for reuse by later requests.
+   * Zero, the default, creates a new WebContext for every request.
+   */
+  final static String CONTEXT_POOL_SIZE = "WMServlet.ContextPoolSize";
+
   /**
    * Null means all OK.
    */
@@ -128,6 +153,12 @@ abstract public class WMServlet
       }
     }
 
+    _streamingThreshold = _broker.getSettings().getIntegerSetting(STREAMING_THRESHOLD, 0);
+    _unavailableDuringWarmup = _broker.getSettings().getBooleanSetting(UNAVAILABLE_DURING_WARMUP);
+    int poolSize = _broker.getSettings().getIntegerSetting(CONTEXT_POOL_SIZE, 0);
+    if (poolSize > 0)
+      _contextPool = new ArrayBlockingQueue<WebContext>(poolSize);
+
     try {
       if (_log.isDebugEnabled()) {
         java.net.URL url = getBroker().getResource(Broker.WEBMACRO_PROPERTIES);
@@ -246,6 +277,12 @@ abstract public class WMServlet
       }
     }
 
+    if (_unavailableDuringWarmup && !_broker.getTemplateWarmup().isDone()) {
+      resp.setHeader("Retry-After", "5");
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Loading templates");
+      return;
+    }
+
     preDoRequest(req, resp);
     context = newWebContext(req, resp);
     try {
@@ -505,14 +542,19 @@ abstract public class WMServlet
 
       _log.debug("Using output encoding " + encoding);
 
-      // get the bytes before calling getOutputStream
-      // this is necessary to be compatible with JSDK 2.3
-      // where you can't call setContentType() after getOutputStream(),
-      // which could be happening during the template evaluation
-      byte[] bytes = tmpl.evaluateAsBytes(encoding, c);
-
-      // now write the FW buffer to the response output stream
-      writeResponseBytes(resp, bytes, encoding);
+      if (_streamingThreshold > 0) {
+        writeResponseStream(tmpl, c, resp, encoding);
+      } else {
+        // render the page before calling getOutputStream
+        // this is necessary to be compatible with JSDK 2.3
+        // where you can't call setContentType() after getOutputStream(),
+        // which could be happening during the template evaluation
+        FastWriter fw = FastWriter.getInstance(_broker, encoding);
+        tmpl.write(fw, c);
+
+        // now write the FW buffer to the response output stream
+        writeResponse(resp, fw);
+      }
     } catch (UnsupportedEncodingException e) {
       // can be thrown by FastWriter.getInstance
       // rethrow it, because otherwise it would be ignored
@@ -558,12 +600,11 @@ abstract public class WMServlet
    * 
    * @param response
    *          where to write fast writer to
-   * @param bytes
-   *          the bytes to write
+   * @param fw
+   *          the rendered page
    */
-  private void writeResponseBytes(HttpServletResponse response,
-                                  byte[] bytes,
-                                  String encoding)
+  private void writeResponse(HttpServletResponse response,
+                             FastWriter fw)
       throws IOException
   {
     OutputStream out;
@@ -582,14 +623,36 @@ abstract public class WMServlet
       out = null;
       _log.debug("Using Writer instead of OutputStream");
     }
-    response.setContentLength(bytes.length);
+    response.setContentLength(fw.size());
     if (out != null) {
-      out.write(bytes);
+      fw.writeTo(out);
     } else {
-      response.getWriter().write(new String(bytes, encoding));
+      response.getWriter().write(fw.toString());
     }
   }
 
+  /**
+   * Helper method to stream a template to a ServletResponse while it is being evaluated. Output is
+   * sent each time WMServlet.StreamingThreshold bytes have been buffered, or at a #flush directive.
+   * The response's OutputStream is not requested until the first bytes are sent, so the template
+   * may set headers and the content type up to that point. No content length is set.
+   * <p>
+   * Note that once part of the page has been sent, an error later on in the template can no longer
+   * be replaced by the error template.
+   */
+  private void writeResponseStream(Template tmpl,
+                                   WebContext c,
+                                   HttpServletResponse response,
+                                   String encoding)
+      throws IOException, PropertyException
+  {
+    FastWriter fw =
+        FastWriter.getInstance(_broker, new ResponseOutputStream(response, encoding), encoding);
+    fw.setFlushThreshold(_streamingThreshold);
+    tmpl.write(fw, c);
+    fw.close();
+  }
+
   // FRAMEWORK TEMPLATE METHODS--PLUG YOUR CODE IN HERE
 
   /**
@@ -597,12 +660,18 @@ abstract public class WMServlet
    * for the request. The default implementation calls WebContext.newInstance(req,resp) on the
    * WebContext prototype returned by the initWebContext() method. This is probably suitable for
    * most servlets, though you can override it and do something different if you like. You can throw
-   * a HandlerException if something goes wrong.
+   * a HandlerException if something goes wrong. If WMServlet.ContextPoolSize is set, a WebContext
+   * recycled by destroyContext() is reused when there is one.
    */
   public WebContext newContext(HttpServletRequest req,
                                HttpServletResponse resp)
       throws HandlerException
   {
+    WebContext wc = (_contextPool == null) ? null : _contextPool.poll();
+    if (wc != null) {
+      wc.reset(req, resp);
+      return wc;
+    }
     return _wm.getWebContext(req, resp);
     // return _wcPrototype.newInstance(req, resp);
   }
@@ -624,11 +693,18 @@ abstract public class WMServlet
    * This method is called at the end of a request and is responsible for cleaning up the Context at
    * the end of the request. You may not need to do anything here, but it is sometimes important if
    * you have an open database connection in your context that you need to close. The default
-   * implementation calls wc.clear().
+   * implementation does nothing, unless WMServlet.ContextPoolSize is set: then it recycles the
+   * context and keeps it for a later request, if the pool has room. Do not use the context after
+   * this.
    */
   public void destroyContext(WebContext wc)
       throws HandlerException
   {
+    // only plain WebContexts, since a subclass may not know about recycle()
+    if (_contextPool != null && wc.getClass() == WebContext.class && wc.getBroker() == _broker) {
+      wc.recycle();
+      _contextPool.offer(wc);
+    }
   }
 
   /**
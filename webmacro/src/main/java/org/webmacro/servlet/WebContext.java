@@ -86,6 +86,28 @@ public class WebContext
     super.clear();
   }
 
+  /**
+   * Ready a WebContext for another request, keeping the stateless tools it has already loaded.
+   * Follow with reset() before using it again.
+   */
+  @Override
+  public void recycle()
+  {
+    _request = null;
+    _response = null;
+    super.recycle();
+  }
+
+  /**
+   * Attach a recycled WebContext to a new request.
+   */
+  public void reset(HttpServletRequest req,
+                    HttpServletResponse resp)
+  {
+    _request = req;
+    _response = resp;
+  }
+
   /**
    * The HttpServletRequest object which contains information provided by the HttpServlet superclass
    * about the Request. Much of this data is provided in other forms later on; those interfaces get
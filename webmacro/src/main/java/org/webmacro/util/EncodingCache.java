@@ -14,51 +14,58 @@ package org.webmacro.util;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
-import java.util.Map;
-
-class Bucket
-{
-
-  public String string1;
-  public String string2;
-  public String string3;
-  public String string4;
-  public String string5;
-  public byte[] bytes1;
-  public byte[] bytes2;
-  public byte[] bytes3;
-  public byte[] bytes4;
-  public byte[] bytes5;
-}
-
-class ArrayBucket
-{
-
-  public String string1[];
-  public String string2[];
-  public String string3[];
-  public String string4[];
-  public String string5[];
-  public byte[] bytes1[];
-  public byte[] bytes2[];
-  public byte[] bytes3[];
-  public byte[] bytes4[];
-  public byte[] bytes5[];
-}
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Provides for a cache of encodings of strings.
+ * <p>
+ * Strings and string arrays are looked up by identity in a fixed number of buckets, each of which
+ * remembers the last five objects encoded into it. Buckets hold immutable arrays of entries that
+ * are replaced, never modified, so lookups take no locks. If two threads encode into the same
+ * bucket at once one of their entries may be lost, which only costs a later re-encoding.
  */
 final public class EncodingCache
 {
 
+  /** The number of encodings remembered per bucket. */
+  private static final int BUCKET_SIZE = 5;
+
+  private static final Entry[] EMPTY_BUCKET = new Entry[0];
+
+  /**
+   * An encoded string or string array.
+   */
+  private static final class Entry
+  {
+
+    final Object source;
+    final Object encoded;
+
+    Entry(Object source,
+          Object encoded)
+    {
+      this.source = source;
+      this.encoded = encoded;
+    }
+  }
+
   final private String _encoding;
-  final private Bucket[] _cache;
-  final private ArrayBucket[] _acache;
+  final private AtomicReferenceArray<Entry[]> _cache;
+  final private AtomicReferenceArray<Entry[]> _acache;
   final private int _size;
 
-  final static private Map<String, EncodingCache> _ecCache = new HashMap<String, EncodingCache>();
+  // counted in stripes chosen by thread, each on its own cache line,
+  // so that request threads don't all contend on one counter
+  private static final int COUNTER_STRIPES = 32;
+  private static final int COUNTER_SPACING = 8;
+  final private AtomicLongArray _hits = new AtomicLongArray(COUNTER_STRIPES * COUNTER_SPACING);
+  final private AtomicLongArray _misses = new AtomicLongArray(COUNTER_STRIPES * COUNTER_SPACING);
+
+  final static private ConcurrentMap<String, EncodingCache> _ecCache =
+      new ConcurrentHashMap<String, EncodingCache>();
 
   public EncodingCache(String encoding) throws UnsupportedEncodingException
   {
@@ -67,21 +74,20 @@ final public class EncodingCache
   }
 
   /**
-   * Create a new EncodingCache with space for buckets * length encoded strings. Buckets is the
-   * number of hashtable buckets the cache will be based on, length is the number of objects that
-   * can be held in each bucket.
+   * Create a new EncodingCache with space for buckets * 5 encoded strings. Buckets is the number
+   * of hashtable buckets the cache will be based on.
    */
   public EncodingCache(String encoding,
                        int buckets) throws UnsupportedEncodingException
   {
     _size = buckets;
 
-    _cache = new Bucket[_size];
-    _acache = new ArrayBucket[_size];
+    _cache = new AtomicReferenceArray<Entry[]>(_size);
+    _acache = new AtomicReferenceArray<Entry[]>(_size);
 
     for (int i = 0; i < _size; i++) {
-      _cache[i] = new Bucket();
-      _acache[i] = new ArrayBucket();
+      _cache.set(i, EMPTY_BUCKET);
+      _acache.set(i, EMPTY_BUCKET);
     }
 
     if ((encoding == null) || encoding.equalsIgnoreCase("UNICODE")
@@ -115,40 +121,20 @@ final public class EncodingCache
     int hash = s.hashCode() % _size;
     if (hash < 0)
       hash = -hash;
-    Bucket b = _cache[hash];
-    synchronized (b) {
-      if (b.string1 == s)
-        return b.bytes1;
-      else if (b.string2 == s)
-        return b.bytes2;
-      else if (b.string3 == s)
-        return b.bytes3;
-      else if (b.string4 == s)
-        return b.bytes4;
-      else if (b.string5 == s)
-        return b.bytes5;
-
-      try {
-        byte[] buf = s.getBytes(_encoding);
-
-        b.string5 = b.string4;
-        b.string4 = b.string3;
-        b.string3 = b.string2;
-        b.string2 = b.string1;
-        b.string1 = s;
-
-        b.bytes5 = b.bytes4;
-        b.bytes4 = b.bytes3;
-        b.bytes3 = b.bytes2;
-        b.bytes2 = b.bytes1;
-        b.bytes1 = buf;
-        ;
-
-        return buf;
-      } catch (UnsupportedEncodingException e) {
-        e.printStackTrace(); // never happen: we check in constructor
-        return null;
-      }
+    Object cached = lookup(_cache, hash, s);
+    if (cached != null) {
+      _hits.incrementAndGet(counterStripe());
+      return (byte[]) cached;
+    }
+
+    _misses.incrementAndGet(counterStripe());
+    try {
+      byte[] buf = s.getBytes(_encoding);
+      remember(_cache, hash, s, buf);
+      return buf;
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace(); // never happen: we check in constructor
+      return null;
     }
   }
 
@@ -163,61 +149,97 @@ final public class EncodingCache
     if (hash < 0)
       hash = -hash;
     hash %= _size;
-    ArrayBucket b = _acache[hash];
-    synchronized (b) {
-      if (b.string1 == s)
-        return b.bytes1;
-      else if (b.string2 == s)
-        return b.bytes2;
-      else if (b.string3 == s)
-        return b.bytes3;
-      else if (b.string4 == s)
-        return b.bytes4;
-      else if (b.string5 == s)
-        return b.bytes5;
-      else if (s == null)
-        return null;
-
-      try {
-        byte[][] buf = new byte[s.length][];
-        for (int i = 0; i < buf.length; i++) {
-          if (s[i] != null) {
-            buf[i] = s[i].getBytes(_encoding);
-          }
-        }
+    if (s == null)
+      return null;
+    Object cached = lookup(_acache, hash, s);
+    if (cached != null) {
+      _hits.incrementAndGet(counterStripe());
+      return (byte[][]) cached;
+    }
 
-        b.string5 = b.string4;
-        b.string4 = b.string3;
-        b.string3 = b.string2;
-        b.string2 = b.string1;
-        b.string1 = s;
-
-        b.bytes5 = b.bytes4;
-        b.bytes4 = b.bytes3;
-        b.bytes3 = b.bytes2;
-        b.bytes2 = b.bytes1;
-        b.bytes1 = buf;
-        ;
-
-        return buf;
-      } catch (UnsupportedEncodingException e) {
-        e.printStackTrace(); // will never happen: we check in constructor
-        return null;
+    _misses.incrementAndGet(counterStripe());
+    try {
+      byte[][] buf = new byte[s.length][];
+      for (int i = 0; i < buf.length; i++) {
+        if (s[i] != null) {
+          buf[i] = s[i].getBytes(_encoding);
+        }
       }
+      remember(_acache, hash, s, buf);
+      return buf;
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace(); // will never happen: we check in constructor
+      return null;
     }
   }
 
+  private static Object lookup(AtomicReferenceArray<Entry[]> cache,
+                               int hash,
+                               Object source)
+  {
+    final Entry[] bucket = cache.get(hash);
+    for (int i = 0; i < bucket.length; i++) {
+      if (bucket[i].source == source)
+        return bucket[i].encoded;
+    }
+    return null;
+  }
+
+  /**
+   * Make the new encoding the first in its bucket, dropping the oldest if the bucket is full.
+   */
+  private static void remember(AtomicReferenceArray<Entry[]> cache,
+                               int hash,
+                               Object source,
+                               Object encoded)
+  {
+    final Entry[] bucket = cache.get(hash);
+    final Entry[] replacement = new Entry[Math.min(bucket.length + 1, BUCKET_SIZE)];
+    replacement[0] = new Entry(source, encoded);
+    System.arraycopy(bucket, 0, replacement, 1, replacement.length - 1);
+    cache.set(hash, replacement);
+  }
+
+  /**
+   * The number of encodings that were found in the cache.
+   */
+  public long getHitCount()
+  {
+    return sum(_hits);
+  }
+
+  /**
+   * The number of encodings that had to be computed.
+   */
+  public long getMissCount()
+  {
+    return sum(_misses);
+  }
+
+  private static int counterStripe()
+  {
+    return (int) (Thread.currentThread().getId() % COUNTER_STRIPES) * COUNTER_SPACING;
+  }
+
+  private static long sum(AtomicLongArray counts)
+  {
+    long total = 0;
+    for (int i = 0; i < counts.length(); i += COUNTER_SPACING)
+      total += counts.get(i);
+    return total;
+  }
+
   public static EncodingCache getInstance(String encoding)
       throws UnsupportedEncodingException
   {
-    synchronized (_ecCache) {
-      EncodingCache ec = _ecCache.get(encoding);
-      if (ec == null) {
-        ec = new EncodingCache(encoding);
-        _ecCache.put(encoding, ec);
-      }
-      return ec;
+    EncodingCache ec = _ecCache.get(encoding);
+    if (ec == null) {
+      EncodingCache created = new EncodingCache(encoding);
+      ec = _ecCache.putIfAbsent(encoding, created);
+      if (ec == null)
+        ec = created;
     }
+    return ec;
   }
 
   public static void main(String arg[])
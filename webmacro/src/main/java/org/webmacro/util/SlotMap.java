@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 1998-2000 Semiotek Inc. All Rights Reserved. Redistribution and use in source and
+ * binary forms, with or without modification, are permitted under the terms of either of the
+ * following Open Source licenses: The GNU General Public License, version 2, or any later version,
+ * as published by the Free Software Foundation (http://www.fsf.org/copyleft/gpl.html); or The
+ * Semiotek Public License (http://webmacro.org/LICENSE.) This software is provided "as is", with NO
+ * WARRANTY, not even the implied warranties of fitness to purpose, or merchantability. You assume
+ * all risks and liabilities associated with its use. See www.webmacro.org for more information on
+ * the WebMacro project.
+ */
+
+package org.webmacro.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Map behind a Context. Names that templates assign to, such as #set and #foreach targets, are
+ * given a slot number when the template is built; their values are kept in an array indexed by
+ * that number, so a template reads and writes them without hashing the name. Everything else, and
+ * anything put by name before its slot existed, is kept in an ordinary HashMap. Either way the
+ * whole thing behaves as one Map.
+ * <p>
+ * Slot numbers come from a {@link Registry}. Each Broker has one, shared by its templates and
+ * Contexts, so a variable set in one template is found by the same number in any template it
+ * includes. Like HashMap, a SlotMap is not thread safe.
+ */
+public final class SlotMap
+  extends AbstractMap<Object, Object>
+  implements Cloneable
+{
+
+  /**
+   * Hands out slot numbers. A registry gives out at most its limit of them; names beyond that are
+   * looked up by name, so a Context's slot array stays small however many names templates use.
+   */
+  public static final class Registry
+  {
+
+    private final ConcurrentHashMap<String, Integer> _slots =
+        new ConcurrentHashMap<String, Integer>();
+    private volatile String[] _names = new String[0];
+    private volatile int _limit;
+
+    public Registry(int limit)
+    {
+      _limit = limit;
+    }
+
+    /**
+     * Set the most slots this registry gives out. Slots already given out are kept.
+     */
+    public void setLimit(int limit)
+    {
+      _limit = limit;
+    }
+
+    /**
+     * Return the slot number for the given name, assigning the next free one if it has none yet,
+     * or -1 if it has none and the limit is reached. Called when templates are built.
+     */
+    public int defineSlot(String name)
+    {
+      Integer slot = _slots.get(name);
+      if (slot == null) {
+        synchronized (this) {
+          slot = _slots.get(name);
+          if (slot == null) {
+            if (_names.length >= _limit)
+              return -1;
+            String[] names = new String[_names.length + 1];
+            System.arraycopy(_names, 0, names, 0, _names.length);
+            names[_names.length] = name;
+            slot = Integer.valueOf(_names.length);
+            _slots.put(name, slot);
+            _names = names;
+          }
+        }
+      }
+      return slot.intValue();
+    }
+
+    /**
+     * Return the slot number for the given name, or -1 if it does not have one.
+     */
+    public int findSlot(String name)
+    {
+      Integer slot = _slots.get(name);
+      return (slot == null) ? -1 : slot.intValue();
+    }
+
+    private int findSlot(Object key)
+    {
+      return (key instanceof String) ? findSlot((String) key) : -1;
+    }
+
+    /**
+     * Return how many slots have been given out.
+     */
+    public int size()
+    {
+      return _names.length;
+    }
+  }
+
+  private final Registry _registry;
+
+  /**
+   * What getSlot() returns for an empty slot.
+   */
+  public static final Object ABSENT = new Object();
+
+  // stands in for a null value, so that an empty slot can be null
+  private static final Object NULL = new Object();
+
+  private static final Object[] NO_VALUES = new Object[0];
+
+  private Object[] _values = NO_VALUES;
+  private int _slotted = 0; // how many slots hold a value
+  private HashMap<Object, Object> _others = null;
+  private int _checked; // slots there were when _others was last checked
+
+  /**
+   * Create a SlotMap whose slots are numbered by the given registry.
+   */
+  public SlotMap(Registry registry)
+  {
+    _registry = registry;
+  }
+
+  /**
+   * Return the registry that numbers this map's slots.
+   */
+  public Registry getRegistry()
+  {
+    return _registry;
+  }
+
+  private int findSlot(Object key)
+  {
+    return _registry.findSlot(key);
+  }
+
+  /**
+   * Move anything put by name before its slot was defined into the slot, so that a name is only
+   * ever in one place.
+   */
+  private void checkOthers()
+  {
+    String[] names = _registry._names;
+    if (_others == null || _checked == names.length)
+      return;
+    for (int i = _checked; i < names.length; i++) {
+      if (_others.containsKey(names[i])) {
+        Object value = _others.remove(names[i]);
+        store(i, (value == null) ? NULL : value);
+      }
+    }
+    _checked = names.length;
+  }
+
+  private void store(int slot,
+                     Object stored)
+  {
+    if (slot >= _values.length) {
+      int size = Math.max(slot + 1, Math.min(_values.length * 2 + 8, _registry._names.length));
+      Object[] grown = new Object[size];
+      System.arraycopy(_values, 0, grown, 0, _values.length);
+      _values = grown;
+    }
+    if (_values[slot] == null)
+      _slotted++;
+    _values[slot] = stored;
+  }
+
+  /**
+   * Get the value in the given slot, or ABSENT if there is none.
+   */
+  public Object getSlot(int slot)
+  {
+    checkOthers();
+    Object v = (slot < _values.length) ? _values[slot] : null;
+    return (v == null) ? ABSENT : (v == NULL) ? null : v;
+  }
+
+  /**
+   * Set the value in the given slot, returning the previous value or null.
+   */
+  public Object putSlot(int slot,
+                        Object value)
+  {
+    checkOthers();
+    Object old = (slot < _values.length) ? _values[slot] : null;
+    store(slot, (value == null) ? NULL : value);
+    return (old == NULL) ? null : old;
+  }
+
+  private Object removeSlot(int slot)
+  {
+    Object old = (slot < _values.length) ? _values[slot] : null;
+    if (old != null) {
+      _values[slot] = null;
+      _slotted--;
+    }
+    return (old == NULL) ? null : old;
+  }
+
+  /**
+   * Get the value for the given key, or ABSENT if there is none. Unlike get() this tells a null
+   * value from a missing one without a second lookup.
+   */
+  public Object lookup(Object key)
+  {
+    if (_others != null) {
+      Object v = _others.get(key);
+      if (v != null || _others.containsKey(key))
+        return v;
+    }
+    int slot = findSlot(key);
+    return (slot < 0) ? ABSENT : getSlot(slot);
+  }
+
+  @Override
+  public Object get(Object key)
+  {
+    Object v = lookup(key);
+    return (v == ABSENT) ? null : v;
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    if (_others != null && _others.containsKey(key))
+      return true;
+    int slot = findSlot(key);
+    return slot >= 0 && getSlot(slot) != ABSENT;
+  }
+
+  @Override
+  public Object put(Object key,
+                    Object value)
+  {
+    int slot = findSlot(key);
+    if (slot >= 0)
+      return putSlot(slot, value);
+    if (_others == null) {
+      _others = new HashMap<Object, Object>();
+      _checked = _registry._names.length;
+    }
+    return _others.put(key, value);
+  }
+
+  @Override
+  public Object remove(Object key)
+  {
+    checkOthers();
+    int slot = findSlot(key);
+    if (slot >= 0)
+      return removeSlot(slot);
+    return (_others == null) ? null : _others.remove(key);
+  }
+
+  @Override
+  public int size()
+  {
+    return _slotted + ((_others == null) ? 0 : _others.size());
+  }
+
+  @Override
+  public void clear()
+  {
+    if (_slotted > 0) {
+      for (int i = 0; i < _values.length; i++)
+        _values[i] = null;
+      _slotted = 0;
+    }
+    if (_others != null)
+      _others.clear();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public SlotMap clone()
+  {
+    SlotMap m;
+    try {
+      m = (SlotMap) super.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new InternalError(e.toString());
+    }
+    m._values = _values.clone();
+    if (_others != null)
+      m._others = (HashMap<Object, Object>) _others.clone();
+    return m;
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet()
+  {
+    checkOthers();
+    return new AbstractSet<Map.Entry<Object, Object>>()
+    {
+
+      @Override
+      public Iterator<Map.Entry<Object, Object>> iterator()
+      {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size()
+      {
+        return SlotMap.this.size();
+      }
+    };
+  }
+
+  /**
+   * Walks the filled slots, then the other entries.
+   */
+  private final class EntryIterator
+    implements Iterator<Map.Entry<Object, Object>>
+  {
+
+    private final String[] _names = _registry._names;
+    private int _next = -1;
+    private int _last = -1;
+    private Iterator<Map.Entry<Object, Object>> _rest = null;
+
+    EntryIterator()
+    {
+      advance();
+    }
+
+    private void advance()
+    {
+      do {
+        _next++;
+      } while (_next < _values.length && _values[_next] == null);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      if (_next < _values.length)
+        return true;
+      if (_rest == null && _others != null)
+        _rest = _others.entrySet().iterator();
+      return _rest != null && _rest.hasNext();
+    }
+
+    @Override
+    public Map.Entry<Object, Object> next()
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      if (_rest != null) {
+        _last = -1;
+        return _rest.next();
+      }
+      _last = _next;
+      advance();
+      final int slot = _last;
+      return new AbstractMap.SimpleEntry<Object, Object>(_names[slot], getSlot(slot))
+      {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object setValue(Object value)
+        {
+          super.setValue(value);
+          return putSlot(slot, value);
+        }
+      };
+    }
+
+    @Override
+    public void remove()
+    {
+      if (_rest != null) {
+        _rest.remove();
+      } else if (_last >= 0) {
+        removeSlot(_last);
+        _last = -1;
+      } else {
+        throw new IllegalStateException();
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package org.webmacro;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.webmacro.engine.StringTemplate;
+
+/**
+ * Render a template that nobody has parsed yet from many threads at once: it must be parsed
+ * exactly once, and every thread must see the fully built template.
+ */
+public class TestConcurrentParse extends TestCase
+{
+
+    private static final int THREADS = 32;
+
+    private WebMacro _wm;
+
+
+    public TestConcurrentParse (String name)
+    {
+        super(name);
+    }
+
+
+    protected void setUp () throws Exception
+    {
+        _wm = new WM();
+    }
+
+
+    /**
+     * Counts how often it is read, and is slow about it, so that every thread gets a chance to
+     * arrive while the first is still parsing.
+     */
+    private static class CountingTemplate extends StringTemplate
+    {
+
+        final AtomicInteger reads = new AtomicInteger();
+
+
+        CountingTemplate (Broker broker, String text)
+        {
+            super(broker, text);
+        }
+
+
+        protected Reader getReader () throws IOException
+        {
+            reads.incrementAndGet();
+            try
+            {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return super.getReader();
+        }
+    }
+
+
+    public void testParsedOnce () throws Exception
+    {
+        final CountingTemplate t = new CountingTemplate(_wm.getBroker(),
+                "#set $x = $n * 2\n#foreach $i in [1, 2, 3] {$i}:$x");
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int n = i;
+            threads[i] = new Thread()
+            {
+                public void run ()
+                {
+                    try
+                    {
+                        start.await();
+                        Context c = _wm.getContext();
+                        c.put("n", n);
+                        String out = t.evaluateAsString(c);
+                        if (!out.equals("123:" + (n * 2)))
+                            results.add(n + " gave " + out);
+                        if (t.getParameters() == null || t.getMacros() == null)
+                            results.add(n + " saw a half published template");
+                    }
+                    catch (Throwable e)
+                    {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        assertEquals(errors.toString(), 0, errors.size());
+        assertEquals(results.toString(), 0, results.size());
+        assertEquals(1, t.reads.get());
+    }
+
+
+    public void testParseIsIdempotent () throws Exception
+    {
+        CountingTemplate t = new CountingTemplate(_wm.getBroker(), "#param $title = \"x\"\nhi");
+        t.parse();
+        t.parse();
+        assertEquals(1, t.reads.get());
+        assertEquals("x", t.getParam("title"));
+    }
+}
@@ -91,4 +91,105 @@ public class TestContext extends TemplateTestCase
     }
 
 
+    public void testAutoContextVariableRegisteredLater () throws Exception
+    {
+        Template t = new org.webmacro.engine.StringTemplate(_wm.getBroker(),
+                "#if ($autoLater) {$autoLater} #else {none}");
+        assertEquals("none", t.evaluateAsString(_wm.getContext()));
+        assertEquals("none", t.evaluateAsString(_wm.getContext()));
+
+        _wm.getBroker().registerAutoContextVariable("autoLater",
+                new org.webmacro.broker.ContextAutoLoader()
+                {
+                    public void init (Broker b, String name)
+                    {
+                    }
+
+
+                    public Object get (String name, Context context)
+                    {
+                        return "loaded";
+                    }
+                });
+        assertEquals("loaded", t.evaluateAsString(_wm.getContext()));
+    }
+
+
+    public void testRecycle () throws Exception
+    {
+        Context c = _wm.getContext();
+        Object text = c.getProperty("Text");
+        Object variable = c.getProperty("Variable");
+        assertSame(text, _wm.getContext().getProperty("Text"));
+        c.put("x", "1");
+        c.setEvaluationExceptionHandler(new DefaultEvaluationExceptionHandler());
+
+        // only the shared Text tool is kept; get() would load the others again
+        c.recycle();
+        assertEquals(1, c.size());
+        assertSame(text, c.getMap().get("Text"));
+        assertNull(c.get("x"));
+        assertSame(_wm.getBroker().getEvaluationExceptionHandler(),
+                c.getEvaluationExceptionHandler());
+        assertNotSame(variable, c.getProperty("Variable"));
+
+        c.put("Text", "mine");
+        c.recycle();
+        assertFalse(c.getMap().containsKey("Text"));
+    }
+
+
+    /** supplies $magic itself, by overriding internalGet(Object) only */
+    private static class MagicContext extends Context
+    {
+        MagicContext (Broker b)
+        {
+            super(b);
+        }
+
+
+        protected Object internalGet (Object name) throws PropertyException
+        {
+            return "magic".equals(name) ? "wizard" : super.internalGet(name);
+        }
+    }
+
+
+    public void testInternalGetOverrideStartsPropertyChain () throws Exception
+    {
+        Template t = new org.webmacro.engine.StringTemplate(_wm.getBroker(),
+                "[$magic.length()] $magic");
+        Context c = new MagicContext(_wm.getBroker());
+        assertEquals("[6] wizard", t.evaluateAsString(c));
+        assertEquals("[6] wizard", t.evaluateAsString(c));
+    }
+
+
+    /** answers every property chain that starts with $all itself */
+    private static class ChainContext extends Context
+    {
+        ChainContext (Broker b)
+        {
+            super(b);
+        }
+
+
+        public Object getProperty (Object[] names) throws PropertyException
+        {
+            if ("all".equals(names[0]))
+                return "all of " + names[names.length - 1];
+            return super.getProperty(names);
+        }
+    }
+
+
+    public void testGetPropertyChainOverride () throws Exception
+    {
+        Template t = new org.webmacro.engine.StringTemplate(_wm.getBroker(),
+                "$all.b.c $other.length()");
+        Context c = new ChainContext(_wm.getBroker());
+        c.put("other", "xy");
+        assertEquals("all of c 2", t.evaluateAsString(c));
+        assertEquals("all of c 2", t.evaluateAsString(c));
+    }
 }
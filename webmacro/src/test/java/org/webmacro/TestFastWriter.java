@@ -56,6 +56,85 @@ public class TestFastWriter extends TestCase
     }
 
 
+    public void testFlushThreshold () throws Exception
+    {
+        java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+        FastWriter fw = FastWriter.getInstance(wm.getBroker(), bos, "ISO8859_1");
+        fw.setFlushThreshold(1024);
+
+        byte[] chunk = makeData(100).getBytes("ISO8859_1");
+        for (int x = 0; x < 10; x++)
+            fw.write(chunk);
+        assertEquals("nothing should be written below the threshold", 0, bos.size());
+
+        fw.write(chunk);
+        assertEquals(1100, bos.size());
+        assertEquals(0, fw.size());
+
+        fw.write("tail");
+        fw.flush();
+        assertEquals(1104, bos.size());
+    }
+
+
+    public void testGather () throws Exception
+    {
+        String big = makeData(2000) + "\u00e9";
+        StringBuilder expected = new StringBuilder();
+        FastWriter fw = FastWriter.getInstance(wm.getBroker(), null, "UTF8");
+        fw.setGatherThreshold(1024);
+        for (int x = 0; x < 50; x++)
+        {
+            fw.writeStatic(big);
+            fw.write("dynamic " + x);
+            fw.writeStatic("<small>");
+            expected.append(big).append("dynamic ").append(x).append("<small>");
+        }
+        byte[] bytes = expected.toString().getBytes("UTF8");
+        assertEquals(bytes.length, fw.size());
+        assertEquals(expected.toString(), fw.toString());
+
+        java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+        fw.writeTo(bos);
+        assertTrue(java.util.Arrays.equals(bytes, bos.toByteArray()));
+
+        bos.reset();
+        fw.writeTo(java.nio.channels.Channels.newChannel(bos));
+        assertTrue(java.util.Arrays.equals(bytes, bos.toByteArray()));
+
+        fw.write("!");
+        assertFalse(fw.isEmptyOrWhitespaceBuffer());
+        assertEquals(expected + "!", fw.toString());
+
+        bos.reset();
+        fw.reset(bos);
+        assertEquals(0, fw.size());
+        fw.writeStatic(big);
+        fw.flush();
+        assertEquals(big, bos.toString("UTF8"));
+    }
+
+
+    public void testCapture () throws Exception
+    {
+        Context c = wm.getContext();
+        FastWriter fw = FastWriter.getCaptureInstance(c);
+        assertTrue(fw.isCapturing());
+        fw.writeStatic("caf\u00e9 ");
+        fw.write("\u20ac".getBytes("UTF8"));
+        fw.write(" x", 1, 1);
+        assertEquals("caf\u00e9 \u20acx", fw.toString());
+        assertEquals("caf\u00e9 \u20acx".getBytes("UTF8").length, fw.size());
+
+        // a released writer comes back empty, and only once
+        fw.release();
+        fw.release();
+        assertSame(fw, FastWriter.getCaptureInstance(c));
+        assertEquals("", fw.toString());
+        assertNotSame(fw, FastWriter.getCaptureInstance(c));
+    }
+
+
     private String makeData (int size)
     {
         StringBuilder sb = new StringBuilder(size);
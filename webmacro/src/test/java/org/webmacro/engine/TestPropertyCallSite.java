@@ -0,0 +1,114 @@
+package org.webmacro.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.webmacro.Context;
+import org.webmacro.template.TemplateTestCase;
+
+/**
+ * Property references remember how they were resolved; make sure they
+ * still do the right thing when the classes they are applied to change.
+ */
+public class TestPropertyCallSite extends TemplateTestCase
+{
+
+    public static class Bean
+    {
+        public String getName ()
+        {
+            return "bean";
+        }
+    }
+
+    public static class OtherBean
+    {
+        public String getName ()
+        {
+            return "other";
+        }
+    }
+
+    public static class FieldBean
+    {
+        public String Name = "field";
+    }
+
+    public static class HashBean
+    {
+        public Object get (String key)
+        {
+            return "hash:" + key;
+        }
+    }
+
+    public static class Order
+    {
+        private final Object _customer;
+
+        public Order (Object customer)
+        {
+            _customer = customer;
+        }
+
+        public Object getCustomer ()
+        {
+            return _customer;
+        }
+    }
+
+
+    public TestPropertyCallSite (String name)
+    {
+        super(name);
+    }
+
+
+    protected void stuffContext (Context context) throws Exception
+    {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("Name", "map");
+
+        List<Object> items = new ArrayList<Object>();
+        items.add(new Bean());
+        items.add(new Bean());
+        items.add(new OtherBean());
+        items.add(new FieldBean());
+        items.add(map);
+        items.add(new HashBean());
+        items.add(new Bean());
+        context.put("items", items);
+
+        List<Order> orders = new ArrayList<Order>();
+        orders.add(new Order(new Bean()));
+        orders.add(new Order(map));
+        orders.add(new Order(new Bean()));
+        orders.add(new Order(null));
+        context.put("orders", orders);
+    }
+
+
+    public void testPolymorphicReceivers () throws Exception
+    {
+        assertStringTemplateEquals("#foreach $i in $items {$i.Name,}",
+                "bean,bean,other,field,map,hash:Name,bean,");
+    }
+
+
+    public void testChangingIntermediateClass () throws Exception
+    {
+        assertStringTemplateEquals(
+                "#foreach $o in $orders {#if ($o.Customer) {$o.Customer.Name,}}",
+                "bean,map,bean,");
+    }
+
+
+    public void testNullIntermediate () throws Exception
+    {
+        assertStringTemplateThrows(
+                "#foreach $o in $orders {$o.Customer.Name}",
+                org.webmacro.PropertyException.class);
+    }
+}
@@ -0,0 +1,141 @@
+package org.webmacro.resource;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.webmacro.Broker;
+import org.webmacro.InitException;
+import org.webmacro.WM;
+import org.webmacro.util.Settings;
+
+public class TestBoundedCacheManager extends TestCase
+{
+
+    public TestBoundedCacheManager (String name)
+    {
+        super(name);
+    }
+
+
+    private BoundedCacheManager newCacheManager (int maximumWeight) throws Exception
+    {
+        Properties p = new Properties();
+        p.setProperty("BoundedCacheManager.*.MaximumWeight", String.valueOf(maximumWeight));
+        Settings s = new Settings();
+        s.load(p);
+        BoundedCacheManager cm = new BoundedCacheManager();
+        cm.init(null, s, "test");
+        return cm;
+    }
+
+
+    /** 100 bytes of payload, 116 with the array header the weigher adds. */
+    private static byte[] entry ()
+    {
+        return new byte[100];
+    }
+
+
+    public void testStaysUnderMaximumWeight () throws Exception
+    {
+        BoundedCacheManager cm = newCacheManager(1160);
+        for (int i = 0; i < 100; i++)
+        {
+            cm.put("key" + i, entry());
+            assertTrue(cm.getWeight() <= 1160);
+        }
+        assertEquals(90, cm.getEvictionCount());
+        assertNotNull("the newest entry is kept", cm.get("key99"));
+        assertNull("the oldest entries are evicted", cm.get("key0"));
+    }
+
+
+    public void testFrequentlyUsedEntriesSurviveScan () throws Exception
+    {
+        BoundedCacheManager cm = newCacheManager(1160);
+        for (int i = 0; i < 5; i++)
+            cm.put("hot" + i, entry());
+        for (int i = 0; i < 5; i++)
+            assertNotNull(cm.get("hot" + i));
+
+        // a scan of one-off entries much larger than the cache
+        for (int i = 0; i < 100; i++)
+            cm.put("cold" + i, entry());
+
+        for (int i = 0; i < 5; i++)
+            assertNotNull("hot" + i + " was evicted by the scan", cm.get("hot" + i));
+    }
+
+
+    public void testReplaceAndInvalidateAdjustWeight () throws Exception
+    {
+        BoundedCacheManager cm = newCacheManager(10000);
+        cm.put("a", entry());
+        cm.put("a", entry());
+        assertEquals(116, cm.getWeight());
+        cm.invalidate("a");
+        assertEquals(0, cm.getWeight());
+        assertNull(cm.get("a"));
+    }
+
+
+    public void testOversizedEntryNotCached () throws Exception
+    {
+        BoundedCacheManager cm = newCacheManager(100);
+        cm.put("big", new byte[1000]);
+        assertNull(cm.get("big"));
+        assertEquals(0, cm.getWeight());
+    }
+
+
+    /** everything weighs 1 */
+    public static class CountingWeigher implements Weigher
+    {
+        public int weigh (Object query, Object resource)
+        {
+            return 1;
+        }
+    }
+
+
+    private BoundedCacheManager newCacheManager (Broker b, String weigher) throws Exception
+    {
+        Properties p = new Properties();
+        p.setProperty("BoundedCacheManager.*.MaximumWeight", "10");
+        p.setProperty("BoundedCacheManager.*.Weigher", weigher);
+        Settings s = new Settings();
+        s.load(p);
+        BoundedCacheManager cm = new BoundedCacheManager();
+        cm.init(b, s, "test");
+        return cm;
+    }
+
+
+    public void testConfiguredWeigher () throws Exception
+    {
+        Broker b = new WM().getBroker();
+        BoundedCacheManager cm = newCacheManager(b, CountingWeigher.class.getName());
+        cm.put("a", entry());
+        assertEquals(1, cm.getWeight());
+
+        try
+        {
+            newCacheManager(b, String.class.getName());
+            fail("a class that is not a Weigher was accepted");
+        }
+        catch (InitException e)
+        {
+            // expected
+        }
+        try
+        {
+            newCacheManager(b, "org.webmacro.resource.NoSuchWeigher");
+            fail("a missing weigher class was accepted");
+        }
+        catch (InitException e)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.webmacro.resource;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.webmacro.Broker;
+import org.webmacro.Template;
+import org.webmacro.WM;
+
+public class TestReloadWatcher extends TestCase
+{
+
+    private File dir;
+
+
+    public TestReloadWatcher (String name)
+    {
+        super(name);
+    }
+
+
+    protected void setUp () throws Exception
+    {
+        dir = File.createTempFile("watch", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+
+    protected void tearDown () throws Exception
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+            files[i].delete();
+        dir.delete();
+    }
+
+
+    private File write (String name, String text) throws Exception
+    {
+        File f = new File(dir, name);
+        FileWriter w = new FileWriter(f);
+        w.write(text);
+        w.close();
+        return f;
+    }
+
+
+    /** only says it changed once the background check has seen it */
+    private static class Flag extends CacheReloadContext
+    {
+        volatile boolean changed;
+
+
+        public boolean shouldReload ()
+        {
+            return changed;
+        }
+    }
+
+
+    public void testLatches () throws Exception
+    {
+        Properties p = new Properties();
+        p.setProperty("ReloadWatcher.Interval", "60000");
+        Broker b = new WM(p).getBroker();
+        ReloadWatcher w = b.getReloadWatcher();
+        assertTrue(w.isEnabled());
+
+        Flag flag = new Flag();
+        CacheReloadContext watched = w.watch(flag);
+        flag.changed = true;
+        assertFalse(watched.shouldReload());
+        w.checkAll();
+        assertTrue(watched.shouldReload());
+        flag.changed = false;
+        w.checkAll();
+        assertTrue(watched.shouldReload());
+        b.destroy();
+    }
+
+
+    public void testReloadsChangedTemplate () throws Exception
+    {
+        File f = write("page.wm", "first");
+        Properties p = new Properties();
+        p.setProperty("TemplatePath", dir.getPath());
+        p.setProperty("ReloadWatcher.Interval", "20");
+        Broker b = new WM(p).getBroker();
+
+        Template t = (Template) b.get("template", "page.wm");
+        assertEquals("first", t.evaluateAsString(new org.webmacro.Context(b)));
+        assertSame(t, b.get("template", "page.wm"));
+
+        write("page.wm", "second");
+        f.setLastModified(f.lastModified() + 2000);
+        for (int i = 0; i < 200 && b.get("template", "page.wm") == t; i++)
+            Thread.sleep(10);
+        t = (Template) b.get("template", "page.wm");
+        assertEquals("second", t.evaluateAsString(new org.webmacro.Context(b)));
+        b.destroy();
+    }
+
+
+    public void testDisabledByDefault () throws Exception
+    {
+        Broker b = new WM().getBroker();
+        assertFalse(b.getReloadWatcher().isEnabled());
+    }
+}
@@ -0,0 +1,283 @@
+package org.webmacro.resource;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.webmacro.Broker;
+import org.webmacro.InitException;
+import org.webmacro.ResourceException;
+import org.webmacro.util.Settings;
+
+public class TestReloadingCacheManager extends TestCase
+{
+
+    private static final int THREADS = 16;
+
+
+    /**
+     * A loader which counts how often it is called and takes long enough
+     * about it that concurrent requests pile up behind it.
+     */
+    private static class SlowLoader implements ResourceLoader
+    {
+        final AtomicInteger loads = new AtomicInteger();
+        volatile int version = 1;
+
+        public void init (Broker b, Settings config) throws InitException
+        {
+        }
+
+        public Object load (String query, CacheElement ce) throws ResourceException
+        {
+            return load((Object) query, ce);
+        }
+
+        public Object load (Object query, CacheElement ce) throws ResourceException
+        {
+            final int n = loads.incrementAndGet();
+            final int loadedVersion = version;
+            ce.setReloadContext(new CacheReloadContext()
+            {
+                public boolean shouldReload ()
+                {
+                    return loadedVersion != version;
+                }
+            });
+            try
+            {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e)
+            {
+                throw new ResourceException("interrupted");
+            }
+            return query + "-" + n;
+        }
+    }
+
+
+    public TestReloadingCacheManager (String name)
+    {
+        super(name);
+    }
+
+
+    private ReloadingCacheManager newCacheManager (boolean serveStale) throws Exception
+    {
+        return newCacheManager(serveStale, -1);
+    }
+
+
+    private ReloadingCacheManager newCacheManager (boolean serveStale, int expireTime)
+            throws Exception
+    {
+        Properties p = new Properties();
+        p.setProperty("ReloadingCacheManager.*.ExpireTime", String.valueOf(expireTime));
+        p.setProperty("ReloadingCacheManager.*.ServeStaleWhileReloading",
+                String.valueOf(serveStale));
+        Settings s = new Settings();
+        s.load(p);
+        ReloadingCacheManager cm = new ReloadingCacheManager();
+        cm.init(null, s, "test");
+        return cm;
+    }
+
+
+    private String[] getConcurrently (final CacheManager cm, final ResourceLoader loader)
+            throws Exception
+    {
+        final String[] results = new String[THREADS];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+        {
+            final int n = i;
+            threads[i] = new Thread()
+            {
+                public void run ()
+                {
+                    try
+                    {
+                        start.await();
+                        results[n] = (String) cm.get("layout.wm", loader);
+                    }
+                    catch (Exception e)
+                    {
+                        results[n] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (int i = 0; i < THREADS; i++)
+            threads[i].join();
+        return results;
+    }
+
+
+    public void testConcurrentMissLoadsOnce () throws Exception
+    {
+        ReloadingCacheManager cm = newCacheManager(false);
+        SlowLoader loader = new SlowLoader();
+
+        String[] results = getConcurrently(cm, loader);
+
+        assertEquals(1, loader.loads.get());
+        assertEquals(THREADS - 1, cm.getCoalescedLoadCount());
+        for (int i = 0; i < THREADS; i++)
+            assertEquals("layout.wm-1", results[i]);
+        cm.destroy();
+    }
+
+
+    public void testConcurrentReloadLoadsOnce () throws Exception
+    {
+        ReloadingCacheManager cm = newCacheManager(false);
+        SlowLoader loader = new SlowLoader();
+        assertEquals("layout.wm-1", cm.get("layout.wm", loader));
+
+        loader.version++;
+        String[] results = getConcurrently(cm, loader);
+
+        assertEquals(2, loader.loads.get());
+        for (int i = 0; i < THREADS; i++)
+            assertEquals("layout.wm-2", results[i]);
+        cm.destroy();
+    }
+
+
+    public void testServeStaleWhileReloading () throws Exception
+    {
+        ReloadingCacheManager cm = newCacheManager(true);
+        SlowLoader loader = new SlowLoader();
+        assertEquals("layout.wm-1", cm.get("layout.wm", loader));
+
+        loader.version++;
+        String[] results = getConcurrently(cm, loader);
+
+        assertEquals(2, loader.loads.get());
+        int fresh = 0;
+        for (int i = 0; i < THREADS; i++)
+        {
+            if (results[i].equals("layout.wm-2"))
+                fresh++;
+            else
+                assertEquals("layout.wm-1", results[i]);
+        }
+        assertTrue("the loading thread should get the new copy", fresh >= 1);
+        assertTrue("waiting threads should get the stale copy", fresh < THREADS);
+        assertEquals("layout.wm-2", cm.get("layout.wm", loader));
+        cm.destroy();
+    }
+
+
+    /**
+     * Asks the cache for another key while loading its own, as a template does when it includes
+     * another as a macro.
+     */
+    private static class IncludingLoader extends SlowLoader
+    {
+        CacheManager cm;
+        String includes;
+
+        public Object load (Object query, CacheElement ce) throws ResourceException
+        {
+            if (includes != null)
+                cm.get(query.equals("a.wm") ? includes : "a.wm", this);
+            return super.load(query, ce);
+        }
+    }
+
+
+    public void testLoadOfItselfFails () throws Exception
+    {
+        ReloadingCacheManager cm = newCacheManager(false);
+        IncludingLoader loader = new IncludingLoader();
+        loader.cm = cm;
+        loader.includes = "a.wm";
+        try
+        {
+            cm.get("a.wm", loader);
+            fail("a load that needs itself should fail");
+        }
+        catch (ResourceException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("Circular") >= 0);
+        }
+        // nothing is left waiting
+        loader.includes = null;
+        assertEquals("a.wm-1", cm.get("a.wm", loader));
+        cm.destroy();
+    }
+
+
+    public void testLoadCycleAcrossThreadsFails () throws Exception
+    {
+        final ReloadingCacheManager cm = newCacheManager(false);
+        final IncludingLoader loader = new IncludingLoader();
+        loader.cm = cm;
+        loader.includes = "b.wm";
+        final String[] results = new String[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < 2; i++)
+        {
+            final int n = i;
+            threads[i] = new Thread()
+            {
+                public void run ()
+                {
+                    try
+                    {
+                        results[n] = (String) cm.get((n == 0) ? "a.wm" : "b.wm", loader);
+                    }
+                    catch (Exception e)
+                    {
+                        results[n] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < 2; i++)
+        {
+            threads[i].join(10000);
+            assertFalse("loads that need each other should not wait for ever",
+                    threads[i].isAlive());
+        }
+        assertTrue(results[0] + " / " + results[1], results[0].indexOf("Circular") >= 0
+                || results[1].indexOf("Circular") >= 0);
+        cm.destroy();
+    }
+
+
+    public void testExpiry () throws Exception
+    {
+        ReloadingCacheManager cm = newCacheManager(false, 300);
+        SlowLoader loader = new SlowLoader();
+        assertEquals("layout.wm-1", cm.get("layout.wm", loader));
+        assertEquals("layout.wm-1", cm.get("layout.wm", loader));
+
+        Thread.sleep(400);
+        assertNull("expired entries are not returned", cm.get("layout.wm"));
+        assertEquals("layout.wm-2", cm.get("layout.wm", loader));
+        assertEquals(2, loader.loads.get());
+        cm.destroy();
+    }
+
+
+    public void testPutRestartsExpiry () throws Exception
+    {
+        ReloadingCacheManager cm = newCacheManager(false, 1500);
+        cm.put("key", "first");
+        Thread.sleep(1000);
+        cm.put("key", "second");
+        // the sweep that would have dropped "first" must leave "second" alone
+        Thread.sleep(1000);
+        assertEquals("second", cm.get("key"));
+        cm.destroy();
+    }
+}
@@ -0,0 +1,140 @@
+package org.webmacro.resource;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.ref.WeakReference;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.webmacro.Broker;
+import org.webmacro.Context;
+import org.webmacro.Template;
+import org.webmacro.WM;
+
+public class TestTemplateDependencies extends TestCase
+{
+
+    private File dir;
+
+    private Broker broker;
+
+
+    public TestTemplateDependencies (String name)
+    {
+        super(name);
+    }
+
+
+    protected void setUp () throws Exception
+    {
+        dir = File.createTempFile("deps", "");
+        dir.delete();
+        dir.mkdirs();
+        Properties p = new Properties();
+        p.setProperty("TemplatePath", dir.getPath());
+        broker = new WM(p).getBroker();
+    }
+
+
+    protected void tearDown () throws Exception
+    {
+        broker.destroy();
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+            files[i].delete();
+        dir.delete();
+    }
+
+
+    private void write (String name, String text) throws Exception
+    {
+        File f = new File(dir, name);
+        long before = f.lastModified();
+        FileWriter w = new FileWriter(f);
+        w.write(text);
+        w.close();
+        if (before != 0)
+            f.setLastModified(before + 2000);
+    }
+
+
+    private String render (String name) throws Exception
+    {
+        Template t = (Template) broker.get("template", name);
+        return t.evaluateAsString(new Context(broker)).trim();
+    }
+
+
+    public void testTransitiveReload () throws Exception
+    {
+        write("lib.wm", "#macro hi() {v1}");
+        write("mid.wm", "#include as macro \"lib.wm\"");
+        write("page.wm", "#include as macro \"mid.wm\"\n#hi()");
+        assertEquals("v1", render("page.wm"));
+
+        TemplateDependencies deps = broker.getTemplateDependencies();
+        assertEquals(1, deps.getDependencies("template:page.wm").size());
+        assertTrue(deps.getDependencies("template:page.wm").contains("template:mid.wm"));
+        Set<String> dependents = deps.getDependents("template:lib.wm");
+        assertEquals(2, dependents.size());
+        assertTrue(dependents.contains("template:page.wm"));
+        assertTrue(dependents.contains("template:mid.wm"));
+
+        write("lib.wm", "#macro hi() {v2}");
+        assertEquals("v2", render("page.wm"));
+    }
+
+
+    public void testTextInclude () throws Exception
+    {
+        write("footer.txt", "one");
+        write("page.wm", "[#include as text \"" + new File(dir, "footer.txt").getPath() + "\"]");
+        assertEquals("[one]", render("page.wm"));
+
+        write("footer.txt", "two");
+        assertEquals("[two]", render("page.wm"));
+    }
+
+
+    public void testEvictedContextsAreForgotten () throws Exception
+    {
+        // reload contexts handed to the watcher, which is never due to poll during the test
+        broker.destroy();
+        Properties p = new Properties();
+        p.setProperty("TemplatePath", dir.getPath());
+        p.setProperty("ReloadWatcher.Interval", "3600000");
+        broker = new WM(p).getBroker();
+        assertTrue(broker.getReloadWatcher().isEnabled());
+
+        write("lib.wm", "#macro hi() {v1}");
+        write("page.wm", "#include as macro \"lib.wm\"\n#hi()");
+        assertEquals("v1", render("page.wm"));
+
+        TemplateDependencies deps = broker.getTemplateDependencies();
+        WeakReference<CacheReloadContext> lib =
+                new WeakReference<CacheReloadContext>(deps.getReloadContext("template:lib.wm"));
+        WeakReference<CacheReloadContext> page =
+                new WeakReference<CacheReloadContext>(deps.getReloadContext("template:page.wm"));
+        assertNotNull(lib.get());
+        assertNotNull(page.get());
+
+        // as if both had been evicted
+        ((CachingProvider) broker.getProvider("template")).flush();
+        for (int i = 0; i < 50 && (lib.get() != null || page.get() != null); i++)
+        {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("the evicted template's reload context is still held", page.get());
+        assertNull("the evicted include's reload context is still held", lib.get());
+        assertTrue(deps.getDependencies("template:page.wm").isEmpty());
+        assertTrue(deps.getDependents("template:lib.wm").isEmpty());
+
+        // loaded again, both are known once more
+        assertEquals("v1", render("page.wm"));
+        assertNotNull(deps.getReloadContext("template:page.wm"));
+        assertTrue(deps.getDependencies("template:page.wm").contains("template:lib.wm"));
+    }
+}
@@ -0,0 +1,108 @@
+package org.webmacro.resource;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.webmacro.Broker;
+import org.webmacro.WM;
+
+public class TestTemplateWarmup extends TestCase
+{
+
+    private File dir;
+
+
+    public TestTemplateWarmup (String name)
+    {
+        super(name);
+    }
+
+
+    protected void setUp () throws Exception
+    {
+        dir = File.createTempFile("warmup", "");
+        dir.delete();
+        new File(dir, "sub/deeper").mkdirs();
+        write("top.wm", "Hello $name");
+        write("sub/page.wm", "#foreach $i in $list {$i}");
+        write("sub/deeper/broken.wm", "#foreach $i in {");
+        write("sub/notes.txt", "not a template");
+    }
+
+
+    protected void tearDown () throws Exception
+    {
+        delete(dir);
+    }
+
+
+    private void write (String name, String text) throws Exception
+    {
+        FileWriter w = new FileWriter(new File(dir, name));
+        w.write(text);
+        w.close();
+    }
+
+
+    private static void delete (File f)
+    {
+        File[] files = f.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+            delete(files[i]);
+        f.delete();
+    }
+
+
+    public void testGlobs () throws Exception
+    {
+        Pattern p = TemplateWarmup.globToPattern("**/*.wm");
+        assertTrue(p.matcher("top.wm").matches());
+        assertTrue(p.matcher("a/b/c.wm").matches());
+        assertFalse(p.matcher("a/b/c.wmm").matches());
+
+        p = TemplateWarmup.globToPattern("sub/*.wm");
+        assertTrue(p.matcher("sub/page.wm").matches());
+        assertFalse(p.matcher("sub/deeper/page.wm").matches());
+        assertFalse(p.matcher("top.wm").matches());
+    }
+
+
+    public void testWarmup () throws Exception
+    {
+        Properties p = new Properties();
+        p.setProperty("TemplatePath", dir.getPath());
+        p.setProperty("TemplateWarmup.Paths", "**/*.wm");
+        p.setProperty("TemplateWarmup.Threads", "2");
+        p.setProperty("TemplateWarmup.Wait", "true");
+        Broker b = new WM(p).getBroker();
+        TemplateWarmup tw = b.getTemplateWarmup();
+
+        assertTrue(tw.isDone());
+        assertEquals(3, tw.getTemplateCount());
+        assertEquals(1, tw.getFailureCount());
+        List<TemplateWarmup.Result> results = tw.getResults();
+        assertEquals(3, results.size());
+        for (int i = 0; i < results.size(); i++)
+        {
+            TemplateWarmup.Result r = results.get(i);
+            assertEquals(r.toString(), !r.getName().equals("sub/deeper/broken.wm"), r.isLoaded());
+        }
+        b.destroy();
+    }
+
+
+    public void testDisabledByDefault () throws Exception
+    {
+        Properties p = new Properties();
+        p.setProperty("TemplatePath", dir.getPath());
+        Broker b = new WM(p).getBroker();
+        assertTrue(b.getTemplateWarmup().isDone());
+        assertEquals(0, b.getTemplateWarmup().getTemplateCount());
+        b.destroy();
+    }
+}
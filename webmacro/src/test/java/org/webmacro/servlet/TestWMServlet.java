@@ -0,0 +1,120 @@
+package org.webmacro.servlet;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.webmacro.InitException;
+import org.webmacro.Template;
+import org.webmacro.WM;
+import org.webmacro.WebMacro;
+import org.webmacro.util.test.MockHttpServletRequest;
+import org.webmacro.util.test.MockHttpServletResponse;
+import org.webmacro.util.test.MockServletConfig;
+
+public class TestWMServlet extends TestCase
+{
+
+    public TestWMServlet (String name)
+    {
+        super(name);
+    }
+
+
+    /** a servlet with a WebContext pool of the given size */
+    private static class PoolingServlet extends WMServlet
+    {
+        private final int poolSize;
+
+
+        PoolingServlet (int poolSize)
+        {
+            this.poolSize = poolSize;
+        }
+
+
+        public WebMacro initWebMacro () throws InitException
+        {
+            Properties p = new Properties();
+            p.setProperty("WMServlet.ContextPoolSize", String.valueOf(poolSize));
+            return new WM(p);
+        }
+
+
+        public Template handle (WebContext context)
+        {
+            return null;
+        }
+    }
+
+
+    public void testRecycledContextStartsClean () throws Exception
+    {
+        PoolingServlet servlet = new PoolingServlet(1);
+        servlet.init(new MockServletConfig());
+
+        MockHttpServletRequest req1 = new MockHttpServletRequest();
+        MockHttpServletResponse resp1 = new MockHttpServletResponse();
+        WebContext wc = servlet.newContext(req1, resp1);
+        Object text = wc.getProperty("Text");
+        Object variable = wc.getProperty("Variable");
+        wc.put("user", "first");
+        servlet.destroyContext(wc);
+
+        MockHttpServletRequest req2 = new MockHttpServletRequest();
+        MockHttpServletResponse resp2 = new MockHttpServletResponse();
+        WebContext next = servlet.newContext(req2, resp2);
+        assertSame(wc, next);
+        assertSame(req2, next.getRequest());
+        assertSame(resp2, next.getResponse());
+        assertFalse(next.containsKey("user"));
+        // the stateless Text tool is shared, so it is kept; others are made afresh
+        assertSame(text, next.getMap().get("Text"));
+        assertFalse(next.getMap().containsKey("Variable"));
+        assertNotSame(variable, next.getProperty("Variable"));
+
+        // a request that hides a shared tool does not hand that on either
+        next.put("Text", "first request's own");
+        servlet.destroyContext(next);
+        WebContext third = servlet.newContext(req1, resp1);
+        assertSame(wc, third);
+        assertNotSame("first request's own", third.getProperty("Text"));
+        assertSame(text, third.getProperty("Text"));
+        servlet.destroy();
+    }
+
+
+    public void testPoolIsBounded () throws Exception
+    {
+        PoolingServlet servlet = new PoolingServlet(1);
+        servlet.init(new MockServletConfig());
+        MockHttpServletRequest req = new MockHttpServletRequest();
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+
+        WebContext a = servlet.newContext(req, resp);
+        WebContext b = servlet.newContext(req, resp);
+        assertNotSame(a, b);
+        servlet.destroyContext(a);
+        servlet.destroyContext(b);
+        assertSame(a, servlet.newContext(req, resp));
+        assertNotSame(b, servlet.newContext(req, resp));
+        servlet.destroy();
+    }
+
+
+    public void testNoPoolByDefault () throws Exception
+    {
+        PoolingServlet servlet = new PoolingServlet(0);
+        servlet.init(new MockServletConfig());
+        MockHttpServletRequest req = new MockHttpServletRequest();
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+
+        WebContext wc = servlet.newContext(req, resp);
+        wc.put("user", "first");
+        servlet.destroyContext(wc);
+        WebContext next = servlet.newContext(req, resp);
+        assertNotSame(wc, next);
+        assertEquals("first", wc.get("user"));
+        servlet.destroy();
+    }
+}
@@ -31,6 +31,8 @@ public class TestArithmetic extends TemplateTestCase
         }
         for (int i = 0; i < 2; i++)
             c.put(bS[i], new Boolean(bV[i]));
+        c.put("half", new Double(0.5));
+        c.put("tenth", new java.math.BigDecimal("0.1"));
     }
 
 
@@ -198,4 +200,27 @@ public class TestArithmetic extends TemplateTestCase
         assertExpr("  ( 1   ==   1)  ", true);
         assertExpr("  (1   ==   1 )  ", true);
     }
+
+
+    public void testNumericTower () throws Exception
+    {
+        assertStringTemplateEquals("#set $result = $half + 1 $result", "1.5");
+        assertStringTemplateEquals("#set $result = $i5 / $half $result", "10.0");
+        assertStringTemplateEquals("#set $result = $tenth * 3 + $half $result", "0.8");
+        assertExpr("$half * 2 == 1", true);
+        assertExpr("$half > 0", true);
+        assertExpr("$half < $tenth", false);
+        assertExpr("$tenth * 3 == $tenth + $tenth + $tenth", true);
+        assertStringTemplateThrows("#set $result = $half / 0",
+                org.webmacro.PropertyException.class);
+    }
+
+
+    public void testConditionsAndLimits ()
+    {
+        assertStringTemplateEquals("#if ($i2 * 2 > $i1 + $i2 && !($l5 < 0)) {yes} #else {no}",
+                "yes");
+        assertStringTemplateEquals("#count $n from 1 to $i2 + 1 {$n}", "123");
+        assertStringTemplateEquals("#foreach $x in [7, 8, 9] limit $i1 + 1 {$x}", "78");
+    }
 }
@@ -77,6 +77,24 @@ public class TestDefaultEEH extends AbstractVariableTestCase
     }
 
 
+    public void testVariableExceptionIsCheap () throws Exception
+    {
+        PropertyException.NullValueException e =
+                new PropertyException.NullValueException("NullObject");
+        assertEquals(0, e.getStackTrace().length);
+        assertNull(e.getContextLocation());
+        assertEquals("Value is null: $NullObject", e.getMessage());
+
+        _context.getTemplateEvaluationContext()._templateName = "page.wm";
+        _context.getTemplateEvaluationContext()._lineNo = 3;
+        _context.getTemplateEvaluationContext()._columnNo = 7;
+        e.setContextLocation(_context);
+        _context.getTemplateEvaluationContext()._lineNo = 4;
+        assertEquals("page.wm:3.7", e.getContextLocation());
+        assertEquals("Value is null: $NullObject at page.wm:3.7", e.getMessage());
+    }
+
+
     public void testNoSuchMethod () throws Exception
     {
         assertStringTemplateThrows("$TestObject.noSuchMethod()",
@@ -0,0 +1,75 @@
+package org.webmacro.template;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.webmacro.Context;
+
+public class TestForeachDirective extends TemplateTestCase
+{
+
+    public TestForeachDirective (String name)
+    {
+        super(name);
+    }
+
+
+    protected void stuffContext (Context context) throws Exception
+    {
+        List<String> abc = Arrays.asList("a", "b", "c");
+        context.put("array", abc.toArray());
+        context.put("arrayList", new ArrayList<String>(abc));
+        context.put("linkedList", new LinkedList<String>(abc));
+        context.put("ints", new int[] { 1, 2, 3 });
+        context.put("doubles", new double[] { 0.5, 1.5 });
+    }
+
+
+    public void testEachKindOfList () throws Exception
+    {
+        assertStringTemplateEquals("#foreach $x in $array {$x}", "abc");
+        assertStringTemplateEquals("#foreach $x in $arrayList {$x}", "abc");
+        assertStringTemplateEquals("#foreach $x in $linkedList {$x}", "abc");
+        assertStringTemplateEquals("#foreach $x in $ints {$x}", "123");
+        assertStringTemplateEquals("#foreach $x in $doubles {$x,}", "0.5,1.5,");
+        assertStringTemplateEquals("#foreach $x in $ints limit 2 {$x}", "12");
+        assertStringTemplateEquals("#foreach $x in $linkedList limit 2 {$x}", "ab");
+    }
+
+
+    public void testIndexing () throws Exception
+    {
+        assertStringTemplateEquals(
+                "#foreach $x in $arrayList indexing $i from 0 {$i$x}", "0a1b2c");
+        assertStringTemplateEquals("#foreach $x in $linkedList indexing $i {$i$x}", "1a2b3c");
+        assertStringTemplateEquals(
+                "#foreach $x in $ints indexing $i from 299 {#if ($x == 3) {$i}}", "301");
+    }
+
+
+    public void testStatus () throws Exception
+    {
+        assertStringTemplateEquals(
+                "#foreach $x in $arrayList status $s {#if ($s.First) {[}$x#if ($s.Last) {]}"
+                + "#else {,}}", "[a,b,c]");
+        assertStringTemplateEquals(
+                "#foreach $x in $linkedList limit 2 status $s {$x$s.Count#if ($s.Last) {.}}",
+                "a1b2.");
+        assertStringTemplateEquals(
+                "#foreach $x in $array status $s indexing $i {$i#if ($s.Last) {!}}", "123!");
+        assertStringTemplateEquals(
+                "#foreach $x in $array status $o {#foreach $n in $ints status $in {}$o.Count}",
+                "123");
+    }
+
+
+    public void testStatusIsOptIn () throws Exception
+    {
+        _context.put("foreach", "mine");
+        assertStringTemplateEquals("#foreach $x in $array {$foreach}", "mineminemine");
+        assertEquals("mine", _context.get("foreach"));
+        assertFalse(_context.containsKey("s"));
+    }
+}
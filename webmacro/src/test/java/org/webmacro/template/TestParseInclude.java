@@ -1,6 +1,8 @@
 package org.webmacro.template;
 
 import org.webmacro.Context;
+import org.webmacro.FastWriter;
+import org.webmacro.Template;
 import org.webmacro.engine.DefaultEvaluationExceptionHandler;
 
 
@@ -83,6 +85,66 @@ public class TestParseInclude extends TemplateTestCase
                 ".*project.*");
     }
 
+    /** the same directive including different templates by turns */
+    public void testIncludeInLoop () throws Exception
+    {
+        _context.put("Names", new String[] {
+                "org/webmacro/template/test_parse.wm",
+                "org/webmacro/template/test_map.wm",
+                "org/webmacro/template/test_parse.wm" });
+        String out = executeStringTemplate(
+                "#foreach $name in $Names {[#include as template \"$name\"]}");
+        assertEquals("[pass][][pass]", out.replaceAll("\\s", ""));
+        assertEquals("SomeValue", ((java.util.Map<?, ?>) _context.get("map")).get("SomeKey"));
+    }
+
+
+    /** a runtime include of a changing file with multibyte characters */
+    public void testIncludeTextChanges () throws Exception
+    {
+        java.io.File f = java.io.File.createTempFile("include", ".txt");
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 3000; i++)
+                sb.append("\u00e9\u20ac");
+            String first = sb.toString();
+            writeUtf8(f, first);
+            _context.put("IncludeFile", f.getPath());
+            Template t = new org.webmacro.engine.StringTemplate(_wm.getBroker(),
+                    "#include as text \"$IncludeFile\"");
+            assertEquals(first, writeUtf8(t));
+            assertEquals(first, writeUtf8(t));
+            assertEquals(first, t.evaluateAsString(_context));
+
+            writeUtf8(f, "changed");
+            f.setLastModified(f.lastModified() + 2000);
+            assertEquals("changed", writeUtf8(t));
+        }
+        finally
+        {
+            f.delete();
+        }
+    }
+
+
+    private void writeUtf8 (java.io.File f, String text) throws Exception
+    {
+        java.io.Writer w = new java.io.OutputStreamWriter(new java.io.FileOutputStream(f), "UTF-8");
+        w.write(text);
+        w.close();
+    }
+
+
+    private String writeUtf8 (Template t) throws Exception
+    {
+        java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+        FastWriter fw = FastWriter.getInstance(_wm.getBroker(), bos, "UTF-8");
+        t.write(fw, _context);
+        fw.close();
+        return bos.toString("UTF-8");
+    }
+
     public void testHttp () throws Exception
     {
 
@@ -104,6 +166,17 @@ public class TestParseInclude extends TemplateTestCase
     }
 
 
+    /** two templates that include each other as macros must fail, not hang */
+    public void testIncludeCycle () throws Exception
+    {
+        assertStringTemplateThrows("#include as macro \"org/webmacro/template/cycle_a.wm\"",
+                org.webmacro.engine.BuildException.class);
+        // and the failure is not remembered as a load in progress
+        assertStringTemplateThrows("#include as macro \"org/webmacro/template/cycle_a.wm\"",
+                org.webmacro.engine.BuildException.class);
+    }
+
+
     public void testBasicMacros () throws Exception
     {
         // now execute each one:
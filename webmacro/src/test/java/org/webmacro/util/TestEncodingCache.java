@@ -0,0 +1,73 @@
+package org.webmacro.util;
+
+import junit.framework.TestCase;
+
+public class TestEncodingCache extends TestCase
+{
+
+    private EncodingCache ec;
+
+
+    public TestEncodingCache (String name)
+    {
+        super(name);
+    }
+
+
+    protected void setUp () throws Exception
+    {
+        ec = new EncodingCache("UTF-8", 11);
+    }
+
+
+    public void testEncode () throws Exception
+    {
+        String s = "caf\u00e9";
+        byte[] b = ec.encode(s);
+        assertEquals(s, new String(b, "UTF-8"));
+        assertSame("second lookup should come from the cache", b, ec.encode(s));
+        assertEquals(1, ec.getMissCount());
+        assertEquals(1, ec.getHitCount());
+        assertNull(ec.encode((String) null));
+    }
+
+
+    public void testKeyedByIdentity () throws Exception
+    {
+        String s1 = new String("text");
+        String s2 = new String("text");
+        byte[] b1 = ec.encode(s1);
+        byte[] b2 = ec.encode(s2);
+        assertNotSame(b1, b2);
+        assertEquals(2, ec.getMissCount());
+    }
+
+
+    public void testEncodeArray () throws Exception
+    {
+        String[] block = new String[] { "a", null, "\u00fc" };
+        byte[][] b = ec.encode(block);
+        assertEquals(3, b.length);
+        assertNull(b[1]);
+        assertEquals("\u00fc", new String(b[2], "UTF-8"));
+        assertSame(b, ec.encode(block));
+    }
+
+
+    public void testBucketKeepsFiveMostRecent () throws Exception
+    {
+        // with a single bucket every string collides
+        EncodingCache one = new EncodingCache("UTF-8", 1);
+        String[] strings = new String[6];
+        byte[][] encoded = new byte[6][];
+        for (int i = 0; i < 6; i++)
+        {
+            strings[i] = "s" + i;
+            encoded[i] = one.encode(strings[i]);
+        }
+        for (int i = 1; i < 6; i++)
+            assertSame(encoded[i], one.encode(strings[i]));
+        assertNotSame("the oldest entry should have been dropped",
+                encoded[0], one.encode(strings[0]));
+    }
+}
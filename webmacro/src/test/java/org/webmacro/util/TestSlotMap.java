@@ -0,0 +1,184 @@
+package org.webmacro.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.webmacro.Broker;
+import org.webmacro.Context;
+import org.webmacro.PropertyException;
+import org.webmacro.Template;
+import org.webmacro.WM;
+import org.webmacro.engine.StringTemplate;
+
+public class TestSlotMap extends TestCase
+{
+
+    public TestSlotMap (String name)
+    {
+        super(name);
+    }
+
+
+    public void testSlotsAndNames () throws Exception
+    {
+        SlotMap.Registry slots = new SlotMap.Registry(10);
+        int slot = slots.defineSlot("testSlotsAndNames.a");
+        assertEquals(slot, slots.defineSlot("testSlotsAndNames.a"));
+        assertEquals(slot, slots.findSlot("testSlotsAndNames.a"));
+        assertEquals(-1, slots.findSlot("testSlotsAndNames.none"));
+
+        SlotMap m = new SlotMap(slots);
+        assertSame(SlotMap.ABSENT, m.getSlot(slot));
+        m.put("testSlotsAndNames.a", "by name");
+        m.put("other", "other");
+        assertEquals("by name", m.getSlot(slot));
+        m.putSlot(slot, null);
+        assertTrue(m.containsKey("testSlotsAndNames.a"));
+        assertNull(m.get("testSlotsAndNames.a"));
+        assertEquals(2, m.size());
+
+        Map<Object, Object> copy = new HashMap<Object, Object>(m);
+        assertEquals(2, copy.size());
+        assertTrue(copy.containsKey("testSlotsAndNames.a"));
+        assertEquals("other", copy.get("other"));
+
+        m.remove("testSlotsAndNames.a");
+        assertSame(SlotMap.ABSENT, m.getSlot(slot));
+        assertEquals(1, m.size());
+    }
+
+
+    public void testSlotDefinedLater () throws Exception
+    {
+        SlotMap.Registry slots = new SlotMap.Registry(10);
+        SlotMap m = new SlotMap(slots);
+        m.put("testSlotDefinedLater.a", "early");
+        int slot = slots.defineSlot("testSlotDefinedLater.a");
+        assertEquals("early", m.getSlot(slot));
+        m.put("testSlotDefinedLater.a", "late");
+        assertEquals(1, m.size());
+        assertEquals("late", m.get("testSlotDefinedLater.a"));
+    }
+
+
+    public void testIterator () throws Exception
+    {
+        SlotMap.Registry slots = new SlotMap.Registry(10);
+        SlotMap m = new SlotMap(slots);
+        m.put("testIterator.x", "1");
+        m.putSlot(slots.defineSlot("testIterator.a"), "2");
+        m.put(Integer.valueOf(3), "3");
+        int n = 0;
+        for (Iterator<Map.Entry<Object, Object>> i = m.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<Object, Object> e = i.next();
+            n++;
+            if (e.getKey().equals("testIterator.a"))
+                e.setValue("two");
+            else if (e.getKey().equals(Integer.valueOf(3)))
+                i.remove();
+        }
+        assertEquals(3, n);
+        assertEquals(2, m.size());
+        assertEquals("two", m.get("testIterator.a"));
+
+        SlotMap c = m.clone();
+        c.put("testIterator.a", "changed");
+        assertEquals("two", m.get("testIterator.a"));
+    }
+
+
+    public void testTemplateLocals () throws Exception
+    {
+        WM wm = new WM();
+        Context c = wm.getContext();
+        c.put("list", new String[] { "a", "b" });
+        c.put("testTemplateLocals_total", "outside");
+        Template t = new StringTemplate(wm.getBroker(),
+                "#set $testTemplateLocals_total = \"\"#foreach $testTemplateLocals_i in $list "
+                + "{#set $testTemplateLocals_total = \"$testTemplateLocals_total$testTemplateLocals_i\"}"
+                + "$testTemplateLocals_total");
+        assertEquals("ab", t.evaluateAsString(c));
+        SlotMap.Registry slots = wm.getBroker().getSlotRegistry();
+        assertTrue(slots.findSlot("testTemplateLocals_total") >= 0);
+        assertTrue(slots.findSlot("testTemplateLocals_i") >= 0);
+        assertEquals("ab", c.get("testTemplateLocals_total"));
+        assertEquals("b", c.get("testTemplateLocals_i"));
+    }
+
+
+    public void testLimit () throws Exception
+    {
+        SlotMap.Registry slots = new SlotMap.Registry(2);
+        assertEquals(0, slots.defineSlot("a"));
+        assertEquals(1, slots.defineSlot("b"));
+        assertEquals(-1, slots.defineSlot("c"));
+        assertEquals(1, slots.defineSlot("b"));
+        assertEquals(2, slots.size());
+
+        SlotMap m = new SlotMap(slots);
+        m.put("c", "by name");
+        assertEquals("by name", m.get("c"));
+    }
+
+
+    public void testSlotsPerBroker () throws Exception
+    {
+        Properties p = new Properties();
+        p.setProperty("testSlotsPerBroker", "one");
+        WM one = new WM(p);
+        p.setProperty("testSlotsPerBroker", "two");
+        WM two = new WM(p);
+        assertNotSame(one.getBroker().getSlotRegistry(), two.getBroker().getSlotRegistry());
+
+        Template t = new StringTemplate(one.getBroker(),
+                "#set $testSlotsPerBroker_a = \"x\"$testSlotsPerBroker_a");
+        assertEquals(-1, two.getBroker().getSlotRegistry().findSlot("testSlotsPerBroker_a"));
+        // a Context of another broker is still served, by name
+        Context c = two.getContext();
+        assertEquals("x", t.evaluateAsString(c));
+        assertEquals("x", c.get("testSlotsPerBroker_a"));
+    }
+
+
+    /** keeps its own variables, away from the map */
+    private static class OverridingContext extends Context
+    {
+        final Map<Object, Object> own = new HashMap<Object, Object>();
+
+
+        OverridingContext (Broker b)
+        {
+            super(b);
+        }
+
+
+        public Object getProperty (Object name) throws PropertyException
+        {
+            return own.containsKey(name) ? own.get(name) : super.getProperty(name);
+        }
+
+
+        public boolean setProperty (Object name, Object value) throws PropertyException
+        {
+            own.put(name, value);
+            return true;
+        }
+    }
+
+
+    public void testSubclassLookupsAreUsed () throws Exception
+    {
+        WM wm = new WM();
+        OverridingContext c = new OverridingContext(wm.getBroker());
+        Template t = new StringTemplate(wm.getBroker(),
+                "#set $testSubclass_a = \"x\"$testSubclass_a");
+        assertEquals("x", t.evaluateAsString(c));
+        assertEquals("x", c.own.get("testSubclass_a"));
+        assertFalse(c.getMap().containsKey("testSubclass_a"));
+    }
+}